@@ -0,0 +1,153 @@
+package com.obby.android.audioplayer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Decodes embedded pictures straight to the size they are displayed at.
+ */
+final class ArtworkDecoder {
+    /**
+     * Upper bound of encoded artwork, which is what the notification parcel carries.
+     */
+    static final int MAX_ENCODED_BYTES = 48 * 1024;
+
+    private static final int MAX_ENCODE_QUALITY = 90;
+
+    private static final int MIN_ENCODE_QUALITY = 30;
+
+    private static final int ENCODE_QUALITY_STEP = 15;
+
+    private final int mTargetSize;
+
+    private final BitmapPool mBitmapPool;
+
+    ArtworkDecoder(final int targetSize, @NonNull final BitmapPool bitmapPool) {
+        mTargetSize = targetSize;
+        mBitmapPool = bitmapPool;
+    }
+
+    int getTargetSize() {
+        return mTargetSize;
+    }
+
+    @WorkerThread
+    @Nullable
+    Bitmap decode(@NonNull final byte[] raw) {
+        // Read bounds first
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(raw, 0, raw.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        // Decode subsampled into a pooled bitmap
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateSampleSize(options.outWidth, options.outHeight);
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+        options.inBitmap = mBitmapPool.get(
+                ceilDiv(options.outWidth, options.inSampleSize),
+                ceilDiv(options.outHeight, options.inSampleSize),
+                options.inPreferredConfig
+        );
+
+        Bitmap decoded;
+        try {
+            decoded = BitmapFactory.decodeByteArray(raw, 0, raw.length, options);
+        } catch (IllegalArgumentException e) {
+            // Pooled bitmap could not be reused
+            mBitmapPool.put(options.inBitmap);
+            options.inBitmap = null;
+            decoded = BitmapFactory.decodeByteArray(raw, 0, raw.length, options);
+        }
+        if (decoded == null) {
+            mBitmapPool.put(options.inBitmap);
+            return null;
+        }
+
+        // Scale the remainder down to the target size, keeping the aspect ratio
+        final int width = decoded.getWidth();
+        final int height = decoded.getHeight();
+        if (width <= mTargetSize && height <= mTargetSize) {
+            return decoded;
+        }
+        final float scale = (float) mTargetSize / Math.max(width, height);
+        final Bitmap scaled = Bitmap.createScaledBitmap(
+                decoded,
+                Math.max(1, Math.round(width * scale)),
+                Math.max(1, Math.round(height * scale)),
+                true
+        );
+        if (scaled != decoded) {
+            mBitmapPool.put(decoded);
+        }
+        return scaled;
+    }
+
+    /**
+     * Encodes a decoded artwork once, lowering quality and then size until it fits
+     * {@link #MAX_ENCODED_BYTES}.
+     */
+    @WorkerThread
+    @Nullable
+    byte[] encode(@NonNull final Bitmap artwork) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(MAX_ENCODED_BYTES);
+        Bitmap bitmap = artwork;
+        while (true) {
+            for (int quality = MAX_ENCODE_QUALITY; quality >= MIN_ENCODE_QUALITY;
+                 quality -= ENCODE_QUALITY_STEP) {
+                out.reset();
+                if (!bitmap.compress(getEncodeFormat(), quality, out)) {
+                    return null;
+                }
+                if (out.size() <= MAX_ENCODED_BYTES) {
+                    if (bitmap != artwork) {
+                        bitmap.recycle();
+                    }
+                    return out.toByteArray();
+                }
+            }
+
+            if (bitmap.getWidth() <= 1 || bitmap.getHeight() <= 1) {
+                return null;
+            }
+            final Bitmap scaled = Bitmap.createScaledBitmap(
+                    bitmap, Math.max(1, bitmap.getWidth() / 2),
+                    Math.max(1, bitmap.getHeight() / 2), true
+            );
+            if (bitmap != artwork) {
+                bitmap.recycle();
+            }
+            bitmap = scaled;
+        }
+    }
+
+    private int calculateSampleSize(final int width, final int height) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= mTargetSize
+                && height / (sampleSize * 2) >= mTargetSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    @SuppressWarnings("deprecation")
+    @NonNull
+    private static Bitmap.CompressFormat getEncodeFormat() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+    }
+
+    private static int ceilDiv(final int value, final int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+}
@@ -0,0 +1,98 @@
+package com.obby.android.audioplayer;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.regex.Pattern;
+
+/**
+ * Serves the encoded notification artwork read-only to whichever system UI draws the
+ * notification. Artwork is exported rather than granted, since the system UI package
+ * differs between devices and a grant would outlive the files trimmed from the store.
+ * Only files of the artwork directory, named as {@link ArtworkStore} names them, are served.
+ */
+public final class ArtworkProvider extends ContentProvider {
+    private static final String AUTHORITY_SUFFIX = ".artwork";
+
+    private static final String ARTWORK_TYPE = "image/webp";
+
+    private static final Pattern FILE_NAME = Pattern.compile("[0-9a-f]+_[0-9]+");
+
+    @NonNull
+    static File getDirectory(@NonNull final Context context) {
+        return new File(context.getCacheDir(), "artwork");
+    }
+
+    @NonNull
+    static Uri getUri(@NonNull final Context context, @NonNull final File file) {
+        return new Uri.Builder()
+                .scheme("content")
+                .authority(context.getPackageName() + AUTHORITY_SUFFIX)
+                .appendPath(file.getName())
+                .build();
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull final Uri uri, @NonNull final String mode)
+            throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new SecurityException("Artwork is read-only");
+        }
+        final String name = uri.getLastPathSegment();
+        if (name == null || uri.getPathSegments().size() != 1
+                || !FILE_NAME.matcher(name).matches()) {
+            throw new FileNotFoundException(uri.toString());
+        }
+        return ParcelFileDescriptor.open(
+                new File(getDirectory(requireContext()), name),
+                ParcelFileDescriptor.MODE_READ_ONLY
+        );
+    }
+
+    @Nullable
+    @Override
+    public String getType(@NonNull final Uri uri) {
+        return ARTWORK_TYPE;
+    }
+
+    @Nullable
+    @Override
+    public Cursor query(@NonNull final Uri uri, @Nullable final String[] projection,
+                        @Nullable final String selection, @Nullable final String[] selectionArgs,
+                        @Nullable final String sortOrder) {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Uri insert(@NonNull final Uri uri, @Nullable final ContentValues values) {
+        throw new UnsupportedOperationException("Artwork is read-only");
+    }
+
+    @Override
+    public int delete(@NonNull final Uri uri, @Nullable final String selection,
+                      @Nullable final String[] selectionArgs) {
+        throw new UnsupportedOperationException("Artwork is read-only");
+    }
+
+    @Override
+    public int update(@NonNull final Uri uri, @Nullable final ContentValues values,
+                      @Nullable final String selection, @Nullable final String[] selectionArgs) {
+        throw new UnsupportedOperationException("Artwork is read-only");
+    }
+}
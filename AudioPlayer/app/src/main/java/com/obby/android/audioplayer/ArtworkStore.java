@@ -0,0 +1,62 @@
+package com.obby.android.audioplayer;
+
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Keeps encoded artwork in files named by their content and hands out content uris of them,
+ * which {@link ArtworkProvider} serves to the system UI.
+ */
+final class ArtworkStore {
+    private static final int MAX_FILES = 64;
+
+    private final Context mContext;
+
+    private final File mDirectory;
+
+    ArtworkStore(@NonNull final Context context) {
+        mContext = context.getApplicationContext();
+        mDirectory = ArtworkProvider.getDirectory(mContext);
+    }
+
+    /**
+     * Writes the artwork once and returns its content uri, or null if it could not be
+     * written. Equal artwork is written once and a file trimmed meanwhile is written again.
+     */
+    @WorkerThread
+    @Nullable
+    Uri share(@NonNull final byte[] data) {
+        final File file = new File(
+                mDirectory, Integer.toHexString(Arrays.hashCode(data)) + "_" + data.length
+        );
+        if (!file.isFile()) {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                return null;
+            }
+            final File tempFile = new File(mDirectory, file.getName() + ".tmp");
+            try (final FileOutputStream out = new FileOutputStream(tempFile)) {
+                out.write(data);
+            } catch (IOException e) {
+                //noinspection ResultOfMethodCallIgnored
+                tempFile.delete();
+                return null;
+            }
+            if (!tempFile.renameTo(file)) {
+                //noinspection ResultOfMethodCallIgnored
+                tempFile.delete();
+                return null;
+            }
+            MetadataCache.trimDirectory(mDirectory, MAX_FILES);
+        }
+        return ArtworkProvider.getUri(mContext, file);
+    }
+}
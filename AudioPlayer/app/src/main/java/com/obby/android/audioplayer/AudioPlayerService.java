@@ -1,33 +1,27 @@
 package com.obby.android.audioplayer;
 
 import android.annotation.SuppressLint;
-import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
-import android.content.ContentResolver;
+import android.content.ClipData;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
-import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.PixelFormat;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.media.AudioAttributes;
-import android.media.AudioFocusRequest;
 import android.media.AudioManager;
-import android.media.MediaMetadataRetriever;
-import android.media.MediaPlayer;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.PowerManager;
-import android.provider.OpenableColumns;
 import android.provider.Settings;
 import android.util.TypedValue;
 import android.view.Gravity;
@@ -39,317 +33,332 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.AnyThread;
+import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.appcompat.view.ContextThemeWrapper;
 import androidx.appcompat.widget.AppCompatImageView;
 import androidx.cardview.widget.CardView;
-import androidx.core.app.NotificationChannelCompat;
-import androidx.core.app.NotificationCompat;
-import androidx.core.app.NotificationManagerCompat;
 import androidx.core.content.ContextCompat;
 import androidx.core.graphics.drawable.DrawableCompat;
 import androidx.preference.PreferenceManager;
 
 import com.google.android.material.slider.Slider;
 
-import java.io.IOException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 
 public class AudioPlayerService extends Service {
+    /**
+     * Appends the intent's data and {@link android.content.ClipData} uris to the queue
+     * instead of replacing it.
+     */
+    static final String ACTION_APPEND = "com.obby.android.audioplayer.action.APPEND";
+
+    /**
+     * {@link StartupTrace#now()} when the user opened the source, or 0 when not comparable.
+     */
+    static final String EXTRA_OPEN_TIME = "com.obby.android.audioplayer.extra.OPEN_TIME";
+
+    /**
+     * {@link StartupTrace#now()} when the service was started.
+     */
+    static final String EXTRA_LAUNCH_TIME = "com.obby.android.audioplayer.extra.LAUNCH_TIME";
+
     private static final String INTENT_ACTION_STATE = "state";
 
     private static final String INTENT_ACTION_LOOP = "loop";
 
+    private static final String INTENT_ACTION_NEXT = "next";
+
     private static final String INTENT_ACTION_EXIT = "exit";
 
     private static final String NOTIFICATION_CHANNEL_ID = "audio_player";
 
     private static final int NOTIFICATION_ID = 1;
 
-    private MediaPlayer mMediaPlayer;
+    private static final int PREFETCH_COUNT = 2;
+
+    private static final long SOURCE_DEBOUNCE_MILLIS = 150L;
+
+    private static final int CODEC_BUFFER_MILLIS = 100;
+
+    /**
+     * Decoded PCM kept of short clips, overridable with the {@code clip_cache_kilobytes}
+     * preference where 0 turns the cache off.
+     */
+    private static final int DEFAULT_CLIP_CACHE_KILOBYTES = 32 * 1024;
+
+    /**
+     * Largest decoded clip kept, overridable with the {@code max_clip_kilobytes} preference.
+     */
+    private static final int DEFAULT_MAX_CLIP_KILOBYTES = 2 * 1024;
 
-    private boolean mPlayerPrepared;
+    /**
+     * Audio queued ahead in offload mode, long enough for the CPU to sleep in between.
+     */
+    private static final int OFFLOAD_BUFFER_MILLIS = 10_000;
 
-    private boolean mPlaybackDelayed;
+    /**
+     * Whether the codec engine plays unless the {@code codec_engine} preference says
+     * otherwise. Only from Android 10 on can it offload, which spares the wake lock.
+     */
+    static final boolean DEFAULT_CODEC_ENGINE =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q;
 
-    private boolean mResumeOnFocusGain;
+    private static final long NO_LOOP_POINT = -1L;
+
+    /**
+     * Minutes paused before the player is released, overridable with the
+     * {@code idle_timeout_minutes} preference where 0 turns it off.
+     */
+    private static final int DEFAULT_IDLE_TIMEOUT_MINUTES = 10;
+
+    private PlaybackController mPlaybackController;
+
+    private PlaybackController.State mPlaybackState = PlaybackController.State.IDLE;
 
     private FloatingWindow mFloatingWindow;
 
-    private NotificationCompat.Builder mNotificationBuilder;
+    private String mTitle;
+
+    private String mSubtitle;
+
+    private Bitmap mArtwork;
+
+    private long mLoopStart = NO_LOOP_POINT;
+
+    private boolean mLoopRangeSet;
+
+    private NotificationPublisher mNotificationPublisher;
 
     private SharedPreferences mSharedPreferences;
 
-    private final Object mLock = new Object();
+    private SourceResolver mSourceResolver;
+
+    private MetadataLoader mMetadataLoader;
+
+    private PlaybackQueue mPlaybackQueue;
+
+    private List<Uri> mPendingUris;
+
+    private boolean mPlayQueueOnRestore;
+
+    private long mPendingOpenTime;
+
+    private long mOpenTime;
+
+    private Uri mMetadataUri;
+
+    private Uri mNextUri;
+
+    private int mHandOffCount;
+
+    private Bitmap mDefaultArtwork;
+
+    private TimelineTicker mTimelineTicker;
+
+    private ClipCache mClipCache;
+
+    private final PlaybackClock mPlaybackClock = new PlaybackClock();
 
     private final Handler mMainHandler = new Handler(Looper.getMainLooper());
 
-    private final ScheduledExecutorService mScheduledExecutorService =
-            Executors.newSingleThreadScheduledExecutor();
-
-    private volatile ScheduledFuture<?> mPlaybackPositionUpdateTask;
-
-    private final AudioFocusRequest mAudioFocusRequest =
-            new AudioFocusRequest.Builder(AudioManager.AUDIOFOCUS_GAIN)
-                    .setAudioAttributes(
-                            new AudioAttributes.Builder()
-                                    .setUsage(AudioAttributes.USAGE_MEDIA)
-                                    .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
-                                    .build()
-                    )
-                    .setAcceptsDelayedFocusGain(true)
-                    .setOnAudioFocusChangeListener(new AudioManager.OnAudioFocusChangeListener() {
-                        @Override
-                        public void onAudioFocusChange(int focusChange) {
-                            if (mMediaPlayer == null || !mPlayerPrepared) {
-                                return;
-                            }
-
-                            switch (focusChange) {
-                                case AudioManager.AUDIOFOCUS_GAIN:
-                                    if (mPlaybackDelayed || mResumeOnFocusGain) {
-                                        mPlaybackDelayed = false;
-                                        mResumeOnFocusGain = false;
-                                        if (!mMediaPlayer.isPlaying()) {
-                                            mMediaPlayer.start();
-                                            updatePlayback();
-                                        }
-                                    }
-                                    break;
-                                case AudioManager.AUDIOFOCUS_LOSS:
-                                    mResumeOnFocusGain = false;
-                                    mPlaybackDelayed = false;
-                                    if (mMediaPlayer.isPlaying()) {
-                                        mMediaPlayer.pause();
-                                        updatePlayback();
-                                    }
-                                    break;
-                                case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
-                                case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
-                                    mResumeOnFocusGain = mMediaPlayer.isPlaying();
-                                    mPlaybackDelayed = false;
-                                    if (mMediaPlayer.isPlaying()) {
-                                        mMediaPlayer.pause();
-                                        updatePlayback();
-                                    }
-                                    break;
-                            }
-                        }
-                    })
-                    .build();
+    private final Debouncer mSourceDebouncer =
+            new Debouncer(mMainHandler, SOURCE_DEBOUNCE_MILLIS, this::commitPendingUris);
+
+    private final Runnable mReleaseIdleResourcesRunnable = this::releaseIdleResources;
+
+    private boolean mScreenInteractive = true;
+
+    private boolean mRenderedInteractive = true;
 
     private final BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            if (intent == null || mMediaPlayer == null || !mPlayerPrepared) {
+            if (intent == null) {
                 return;
             }
 
             final String action = intent.getAction();
+            if (Intent.ACTION_SCREEN_ON.equals(action)
+                    || Intent.ACTION_SCREEN_OFF.equals(action)) {
+                mScreenInteractive = Intent.ACTION_SCREEN_ON.equals(action);
+                updateRenderMode();
+                return;
+            }
+
+            if (mPlaybackController == null) {
+                return;
+            }
+
             if (AudioManager.ACTION_AUDIO_BECOMING_NOISY.equals(action)) {
-                if (mMediaPlayer.isPlaying()) {
-                    mMediaPlayer.pause();
-                    updatePlayback();
-                }
-            } else if (INTENT_ACTION_STATE.equals(action)) {
-                if (mMediaPlayer.isPlaying()) {
-                    mMediaPlayer.pause();
-                    updatePlayback();
-                } else {
-                    startPlayback();
-                }
-            } else if (INTENT_ACTION_LOOP.equals(action)) {
-                mMediaPlayer.setLooping(!mMediaPlayer.isLooping());
-                updatePlayback();
-            } else if (INTENT_ACTION_EXIT.equals(action)) {
-                stopSelf();
+                mPlaybackController.pause();
             }
         }
     };
 
     private final SharedPreferences.OnSharedPreferenceChangeListener mOnPreferenceChangeListener =
             (sharedPreferences, key) -> {
-                if ("floating_window".equals(key) && mFloatingWindow != null) {
-                    if (sharedPreferences.getBoolean(key, false)
-                            && Settings.canDrawOverlays(this)) {
-                        mFloatingWindow.attach();
-                    } else {
-                        mFloatingWindow.detach();
-                    }
+                if ("floating_window".equals(key)) {
+                    updateFloatingWindow();
                 }
             };
 
     @Override
     public void onCreate() {
         super.onCreate();
+        final long createTime = StartupTrace.begin(StartupTrace.PHASE_SERVICE_CREATE);
 
         // Register broadcast receiver
         final IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(AudioManager.ACTION_AUDIO_BECOMING_NOISY);
-        intentFilter.addAction(INTENT_ACTION_STATE);
-        intentFilter.addAction(INTENT_ACTION_LOOP);
-        intentFilter.addAction(INTENT_ACTION_EXIT);
+        intentFilter.addAction(Intent.ACTION_SCREEN_ON);
+        intentFilter.addAction(Intent.ACTION_SCREEN_OFF);
         registerReceiver(mBroadcastReceiver, intentFilter);
+        mScreenInteractive = getSystemService(PowerManager.class).isInteractive();
+
+        // Create source resolver shared by playback and metadata extraction
+        mSourceResolver = new SourceResolver(this);
+
+        // Create playback controller
+        mPlaybackController = new PlaybackController(
+                this, mPlaybackClock, mSourceResolver, createEngineFactory(),
+                new PlaybackController.Listener() {
+                    @Override
+                    public void onPlaybackStateChanged(@NonNull PlaybackController.State state) {
+                        updatePlayback(state);
+                    }
 
-        // Create media player
-        mMediaPlayer = new MediaPlayer();
-        mMediaPlayer.setWakeMode(this, PowerManager.PARTIAL_WAKE_LOCK);
-        mMediaPlayer.setOnPreparedListener(mp -> {
-            if (mMediaPlayer != null) {
-                mPlayerPrepared = true;
-                startPlayback();
-            }
-        });
-        mMediaPlayer.setOnErrorListener((mp, what, extra) -> {
-            mMainHandler.post(() -> Toast.makeText(
-                    this, R.string.audio_player_error, Toast.LENGTH_SHORT
-            ).show());
-            stopSelf();
-            return true;
-        });
-        mMediaPlayer.setOnMediaTimeDiscontinuityListener((mp, mts) -> updatePlayback());
-        mMediaPlayer.setOnSeekCompleteListener(mp -> updatePlayback());
-        mMediaPlayer.setOnCompletionListener(mp -> updatePlayback());
+                    @Override
+                    public void onPlaybackError() {
+                        Toast.makeText(
+                                AudioPlayerService.this, R.string.audio_player_error,
+                                Toast.LENGTH_SHORT
+                        ).show();
+                        stopSelf();
+                    }
 
-        // Create floating window
-        final Context context = new ContextThemeWrapper(this, R.style.Theme_AudioPlayer);
-        mFloatingWindow = new FloatingWindow(context);
-        mFloatingWindow.setOnSettingsViewClickListener(v -> goToSettings());
-        mFloatingWindow.setOnCloseViewClickListener(v -> stopSelf());
-        mFloatingWindow.setOnStateViewClickListener(v -> {
-            if (mMediaPlayer != null && mPlayerPrepared) {
-                if (mMediaPlayer.isPlaying()) {
-                    mMediaPlayer.pause();
-                    updatePlayback();
-                } else {
-                    startPlayback();
+                    @Override
+                    public void onPlaybackSuspended() {
+                        // Leave the foreground only once the players are actually gone
+                        if (mNotificationPublisher != null && !mPlaybackState.playing) {
+                            mNotificationPublisher.stopForeground();
+                        }
+                    }
                 }
-            }
-        });
-        mFloatingWindow.setOnLoopViewClickListener(v -> {
-            if (mMediaPlayer != null && mPlayerPrepared) {
-                mMediaPlayer.setLooping(!mMediaPlayer.isLooping());
-                updatePlayback();
-            }
-        });
-        mFloatingWindow.setOnTimelineViewTouchListener(new Slider.OnSliderTouchListener() {
-            @SuppressLint("RestrictedApi")
-            @Override
-            public void onStartTrackingTouch(@NonNull Slider slider) {
-            }
+        );
 
-            @SuppressLint("RestrictedApi")
-            @Override
-            public void onStopTrackingTouch(@NonNull Slider slider) {
-                if (mMediaPlayer != null && mPlayerPrepared) {
-                    mMediaPlayer.seekTo((int) slider.getValue());
-                    updatePlayback();
-                }
+        // Create metadata loader
+        final int artworkSize = Math.max(
+                getResources().getDimensionPixelSize(
+                        android.R.dimen.notification_large_icon_width
+                ),
+                getResources().getDimensionPixelSize(
+                        android.R.dimen.notification_large_icon_height
+                )
+        );
+        mMetadataLoader = new MetadataLoader(this, mSourceResolver, artworkSize);
+
+        // Restore playback queue in the background, without entries that lost their grant
+        mPlaybackQueue = new PlaybackQueue(new File(getFilesDir(), "queue"));
+        mPlaybackQueue.restore(mSourceResolver::isReadable, this::onQueueRestored);
+
+        // Create timeline ticker
+        mTimelineTicker = new TimelineTicker(() -> {
+            if (mFloatingWindow != null) {
+                mFloatingWindow.setTimeLine(
+                        mPlaybackClock.getPosition(), mPlaybackClock.getDuration()
+                );
             }
         });
 
-        // Create notification builder
+        // Create notification publisher
         final PendingIntent contentIntent = PendingIntent.getActivity(
                 this,
                 0,
                 new Intent(this, MainActivity.class).addFlags(Intent.FLAG_ACTIVITY_NEW_TASK),
                 PendingIntent.FLAG_IMMUTABLE
         );
-        mNotificationBuilder = new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID)
-                .setVisibility(NotificationCompat.VISIBILITY_PUBLIC)
-                .setOngoing(true)
-                .setSilent(true)
-                .setSmallIcon(R.drawable.ic_audio_player)
-                .setContentIntent(contentIntent);
-
-        // Create notification channel
-        final NotificationChannelCompat channel = new NotificationChannelCompat.Builder(
-                NOTIFICATION_CHANNEL_ID, NotificationManagerCompat.IMPORTANCE_DEFAULT
-        ).setName(getString(R.string.audio_player_notification_channel_name)).build();
-        NotificationManagerCompat.from(this).createNotificationChannel(channel);
+        mNotificationPublisher = new NotificationPublisher(
+                this, NOTIFICATION_CHANNEL_ID,
+                getString(R.string.audio_player_notification_channel_name), NOTIFICATION_ID,
+                INTENT_ACTION_STATE, INTENT_ACTION_LOOP, INTENT_ACTION_NEXT, INTENT_ACTION_EXIT,
+                contentIntent
+        );
 
         // Register preference change listener
         mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
         mSharedPreferences.registerOnSharedPreferenceChangeListener(mOnPreferenceChangeListener);
+
+        StartupTrace.end(StartupTrace.PHASE_SERVICE_CREATE, createTime);
     }
 
-    @SuppressWarnings("ConstantConditions")
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (intent == null) {
             return START_NOT_STICKY;
         }
 
-        final Uri uri = intent.getData();
-        if (uri == null) {
-            return START_NOT_STICKY;
+        StartupTrace.record(
+                StartupTrace.PHASE_SERVICE_LAUNCH, intent.getLongExtra(EXTRA_LAUNCH_TIME, 0L)
+        );
+
+        // Post notification, every foreground start has to promote the service again
+        mNotificationPublisher.publishNow();
+
+        // Notification actions, sent to the service so they work after it left the foreground
+        final String action = intent.getAction();
+        if (INTENT_ACTION_STATE.equals(action) || INTENT_ACTION_LOOP.equals(action)
+                || INTENT_ACTION_NEXT.equals(action) || INTENT_ACTION_EXIT.equals(action)) {
+            onNotificationAction(action);
+            return START_STICKY;
         }
 
-        // Set data source to media player
-        mPlayerPrepared = false;
-        mPlaybackDelayed = false;
-        mResumeOnFocusGain = false;
-        mMediaPlayer.reset();
-        try {
-            mMediaPlayer.setDataSource(this, uri);
-        } catch (IOException e) {
-            Toast.makeText(this, R.string.audio_player_error, Toast.LENGTH_SHORT).show();
+        final List<Uri> uris = getUris(intent);
+        if (uris.isEmpty()) {
+            if (mMetadataUri == null && mPendingUris == null) {
+                stopSelf(startId);
+            }
             return START_NOT_STICKY;
         }
 
-        // Extract media metadata
-        final String title;
-        final String subtitle;
-        final Bitmap artwork;
-        try (final MediaMetadataRetriever retriever = new MediaMetadataRetriever()) {
-            retriever.setDataSource(this, uri);
-            final String mediaTitle = retriever.extractMetadata(
-                    MediaMetadataRetriever.METADATA_KEY_TITLE
-            );
-            title = mediaTitle == null ? getFileDisplayNameFromUri(uri) : mediaTitle;
-            subtitle = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST);
-            final byte[] raw = retriever.getEmbeddedPicture();
-            if (raw == null) {
-                final Drawable drawable = DrawableCompat.wrap(
-                        ContextCompat.getDrawable(this, R.drawable.ic_artwork)
-                ).mutate();
-                drawable.setTint(ContextCompat.getColor(this, R.color.tertiary_text_light));
-                artwork = convertDrawableToBitmap(drawable);
+        if (ACTION_APPEND.equals(action)) {
+            // Append to the queue, or to a replacement that is still settling
+            if (mPendingUris != null) {
+                mPendingUris.addAll(uris);
             } else {
-                artwork = BitmapFactory.decodeByteArray(raw, 0, raw.length);
+                mPlaybackQueue.append(uris);
+                if (mMetadataUri != null) {
+                    prepareUpcomingEntries();
+                } else if (mPlaybackQueue.isRestored()) {
+                    // Nothing is playing, resume the queue with the new entries at its end
+                    playCurrentEntry();
+                } else {
+                    mPlayQueueOnRestore = true;
+                }
             }
+        } else {
+            // Play only the newest source of a burst, once the burst settles
+            mPendingUris = uris;
+            mPendingOpenTime = intent.getLongExtra(EXTRA_OPEN_TIME, 0L);
+            mMetadataUri = null;
+            mMetadataLoader.cancel();
+            mMetadataLoader.cancelPrefetches();
+            setMetadata(mSourceResolver.peekDisplayName(uris.get(0)), null, null, null, null);
+            mSourceDebouncer.request();
         }
 
-        // Set metadata to floating window
-        mFloatingWindow.setTitle(title);
-        mFloatingWindow.setSubtitle(subtitle);
-        mFloatingWindow.setArtwork(artwork);
-
-        // Set metadata to notification builder
-        mNotificationBuilder.setContentTitle(title)
-                .setContentText(subtitle)
-                .setLargeIcon(artwork);
-
-        // Create and post notification
-        final Notification notification = mNotificationBuilder
-                .setStyle(new androidx.media.app.NotificationCompat.MediaStyle())
-                .build();
-        NotificationManagerCompat.from(this).notify(NOTIFICATION_ID, notification);
-        startForeground(NOTIFICATION_ID, notification);
-
         // Attach floating window
-        if (mSharedPreferences.getBoolean("floating_window", false)
-                && Settings.canDrawOverlays(this)) {
-            mFloatingWindow.attach();
-        }
-
-        // Prepare media player
-        mMediaPlayer.prepareAsync();
+        updateFloatingWindow();
 
         return START_STICKY;
     }
@@ -358,8 +367,33 @@ public class AudioPlayerService extends Service {
     public void onDestroy() {
         super.onDestroy();
 
-        // Terminate scheduled executor
-        mScheduledExecutorService.shutdown();
+        // Drop sources that have not settled yet
+        mSourceDebouncer.cancel();
+        mPendingUris = null;
+        mMainHandler.removeCallbacks(mReleaseIdleResourcesRunnable);
+
+        // Stop timeline ticker
+        if (mTimelineTicker != null) {
+            mTimelineTicker.setMode(TimelineTicker.MODE_NONE);
+            mTimelineTicker = null;
+        }
+
+        // Cancel metadata extraction
+        mMetadataLoader.shutdown();
+        mMetadataUri = null;
+        mNextUri = null;
+
+        // Let the last queue write finish
+        if (mPlaybackQueue != null) {
+            mPlaybackQueue.shutdown();
+            mPlaybackQueue = null;
+        }
+
+        // Cancel pending notification updates and remove the notification
+        if (mNotificationPublisher != null) {
+            mNotificationPublisher.cancel();
+            mNotificationPublisher = null;
+        }
 
         // Unregister broadcast receiver
         unregisterReceiver(mBroadcastReceiver);
@@ -378,12 +412,12 @@ public class AudioPlayerService extends Service {
             mFloatingWindow = null;
         }
 
-        // Release media player
-        if (mMediaPlayer != null) {
-            mMediaPlayer.release();
-            mMediaPlayer = null;
+        // Release playback controller
+        if (mPlaybackController != null) {
+            mPlaybackController.release();
+            mPlaybackController = null;
         }
-        mPlayerPrepared = false;
+        mPlaybackState = PlaybackController.State.IDLE;
     }
 
     @Nullable
@@ -392,134 +426,426 @@ public class AudioPlayerService extends Service {
         return null;
     }
 
-    @AnyThread
-    private void updatePlayback() {
-        if (mMediaPlayer == null || !mPlayerPrepared) {
-            return;
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        StartupTrace.dump(writer);
+        writer.println();
+        PlaybackMetrics.dump(writer);
+    }
+
+    private void updatePlayback(@NonNull final PlaybackController.State state) {
+        PlaybackMetrics.increment(PlaybackMetrics.COUNTER_PLAYBACK_UPDATES);
+        mPlaybackState = state;
+
+        // Follow hand-offs to the next entry, more than one if dispatches were coalesced
+        final int handOffs = state.handOffCount - mHandOffCount;
+        mHandOffCount = state.handOffCount;
+        if (handOffs > 0 && state.uri != null && mPlaybackQueue != null) {
+            for (int i = 0; i < handOffs; i++) {
+                mPlaybackQueue.moveToNext();
+            }
+            loadMetadata(state.uri);
+            prepareUpcomingEntries();
         }
 
-        final boolean isPlaying = mMediaPlayer.isPlaying();
-        final boolean isLooping = mMediaPlayer.isLooping();
-        final int currentPosition = mMediaPlayer.getCurrentPosition();
-        final int duration = mMediaPlayer.getDuration();
+        if (!state.prepared) {
+            if (state.suspended) {
+                // Looping toggled while suspended applies once the source plays again
+                if (mFloatingWindow != null) {
+                    mFloatingWindow.setLooping(state.looping);
+                }
+                if (mNotificationPublisher != null) {
+                    mNotificationPublisher.setPlayback(false, state.looping, mNextUri != null);
+                }
+            }
+            updateRenderMode();
+            return;
+        }
 
-        if (isPlaying) {
-            schedulePlaybackPositionUpdateTask();
-        } else {
-            cancelPlaybackPositionUpdateTask();
+        // Time to first audio of the latest open
+        if (mOpenTime != 0L && state.playing && state.uri != null
+                && state.uri.equals(mMetadataUri)) {
+            StartupTrace.record(StartupTrace.PHASE_FIRST_AUDIO, mOpenTime);
+            mOpenTime = 0L;
         }
 
         if (mFloatingWindow != null) {
-            mFloatingWindow.setPlaying(isPlaying);
-            mFloatingWindow.setLooping(isLooping);
-            mFloatingWindow.setTimeLine(currentPosition, duration);
-        }
-
-        if (mNotificationBuilder != null) {
-            final Notification notification = mNotificationBuilder.clearActions()
-                    .addAction(
-                            isPlaying ? R.drawable.ic_pause : R.drawable.ic_play,
-                            isPlaying ? "Pause" : "Play",
-                            createActionPendingIntent(INTENT_ACTION_STATE)
-                    )
-                    .addAction(
-                            isLooping ? R.drawable.ic_loop_on : R.drawable.ic_loop_off,
-                            isLooping ? "No loop" : "Loop",
-                            createActionPendingIntent(INTENT_ACTION_LOOP)
-                    )
-                    .addAction(
-                            R.drawable.ic_close_outlined,
-                            "Exit",
-                            createActionPendingIntent(INTENT_ACTION_EXIT)
-                    )
-                    .setStyle(
-                            new androidx.media.app.NotificationCompat.MediaStyle()
-                                    .setShowActionsInCompactView(0, 1, 2)
-                    ).build();
-            NotificationManagerCompat.from(this).notify(NOTIFICATION_ID, notification);
-            startForeground(NOTIFICATION_ID, notification);
+            mFloatingWindow.setPlaying(state.playing);
+            mFloatingWindow.setLooping(state.looping);
+            mFloatingWindow.setTimeLine(mPlaybackClock.getPosition(), state.duration);
         }
-    }
 
-    private void startPlayback() {
-        if (mMediaPlayer == null || !mPlayerPrepared) {
-            return;
+        updateRenderMode();
+
+        if (mNotificationPublisher != null) {
+            mNotificationPublisher.setPlayback(state.playing, state.looping, mNextUri != null);
         }
 
-        switch (getSystemService(AudioManager.class).requestAudioFocus(mAudioFocusRequest)) {
-            case AudioManager.AUDIOFOCUS_REQUEST_GRANTED:
-                mPlaybackDelayed = false;
-                mMediaPlayer.start();
-                updatePlayback();
-                break;
-            case AudioManager.AUDIOFOCUS_REQUEST_FAILED:
-                mPlaybackDelayed = false;
-                break;
-            case AudioManager.AUDIOFOCUS_REQUEST_DELAYED:
-                mPlaybackDelayed = true;
-                break;
+        // Count the pause from its latest change
+        mMainHandler.removeCallbacks(mReleaseIdleResourcesRunnable);
+        final int idleTimeoutMinutes = mSharedPreferences == null ? 0 : mSharedPreferences.getInt(
+                "idle_timeout_minutes", DEFAULT_IDLE_TIMEOUT_MINUTES
+        );
+        if (!state.playing && idleTimeoutMinutes > 0) {
+            mMainHandler.postDelayed(
+                    mReleaseIdleResourcesRunnable, TimeUnit.MINUTES.toMillis(idleTimeoutMinutes)
+            );
         }
     }
 
-    private void schedulePlaybackPositionUpdateTask() {
-        if (mPlaybackPositionUpdateTask != null) {
-            return;
+    /**
+     * Picks the playback engine. The codec engine, which offloads what the hardware decodes
+     * while not looping, plays by default from Android 10 on, MediaPlayer before that or
+     * when the codec engine is turned off in the settings. Looping sources always play on
+     * the codec engine, the one that loops seamlessly and to a range.
+     */
+    @NonNull
+    PlaybackEngine.Factory createEngineFactory() {
+        final AudioAttributes audioAttributes = new AudioAttributes.Builder()
+                .setUsage(AudioAttributes.USAGE_MEDIA)
+                .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                .build();
+        final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        final boolean codecEngine = preferences.getBoolean("codec_engine", DEFAULT_CODEC_ENGINE);
+        final ClipCache clipCache = createClipCache(preferences);
+        final int offloadBufferMillis = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+                ? OFFLOAD_BUFFER_MILLIS : 0;
+        final String noOffloadReason = DEFAULT_CODEC_ENGINE
+                ? "codec engine turned off in the settings" : "needs Android 10";
+        mClipCache = clipCache;
+        return looping -> looping || codecEngine
+                ? new CodecPlaybackEngine(
+                        this, audioAttributes, CODEC_BUFFER_MILLIS, true, clipCache,
+                        offloadBufferMillis
+                )
+                : new MediaPlayerEngine(this, noOffloadReason);
+    }
+
+    @Nullable
+    private static ClipCache createClipCache(@NonNull final SharedPreferences preferences) {
+        final int cacheKilobytes = Math.min(Integer.MAX_VALUE / 1024, preferences.getInt(
+                "clip_cache_kilobytes", DEFAULT_CLIP_CACHE_KILOBYTES
+        ));
+        final int maxClipKilobytes = Math.min(cacheKilobytes, preferences.getInt(
+                "max_clip_kilobytes", DEFAULT_MAX_CLIP_KILOBYTES
+        ));
+        if (cacheKilobytes <= 0 || maxClipKilobytes <= 0) {
+            return null;
         }
-        synchronized (mLock) {
-            if (mPlaybackPositionUpdateTask != null) {
-                return;
+        return new ClipCache(cacheKilobytes * 1024, maxClipKilobytes * 1024);
+    }
+
+    /**
+     * Frees what a long pause does not need: the players and decoders, bitmaps and caches
+     * held in memory, and the foreground state once the players are released. The paused
+     * position is kept and playing again picks up from there, with the metadata still shown.
+     */
+    private void releaseIdleResources() {
+        mPlaybackController.suspend();
+        mMetadataLoader.trimMemory();
+        if (mClipCache != null) {
+            mClipCache.clear();
+        }
+    }
+
+    private void onNotificationAction(@NonNull final String action) {
+        if (INTENT_ACTION_EXIT.equals(action)) {
+            stopSelf();
+        } else if (mMetadataUri == null && mPendingUris == null) {
+            // Started anew after the process was gone, play resumes the restored queue
+            if (!INTENT_ACTION_STATE.equals(action)) {
+                stopSelf();
+            } else if (mPlaybackQueue.isRestored()) {
+                playCurrentEntry();
+            } else {
+                mPlayQueueOnRestore = true;
             }
-            mPlaybackPositionUpdateTask = mScheduledExecutorService.scheduleAtFixedRate(() -> {
-                if (mMediaPlayer != null && mPlayerPrepared && mFloatingWindow != null) {
-                    mFloatingWindow.setTimeLine(
-                            mMediaPlayer.getCurrentPosition(), mMediaPlayer.getDuration()
-                    );
-                }
-            }, 50L, 50L, TimeUnit.MILLISECONDS);
-            mPlaybackPositionUpdateTask = null;
+        } else if (INTENT_ACTION_STATE.equals(action)) {
+            mPlaybackController.togglePlayback();
+        } else if (INTENT_ACTION_LOOP.equals(action)) {
+            mPlaybackController.toggleLooping();
+        } else {
+            skipToNext();
         }
     }
 
-    private void cancelPlaybackPositionUpdateTask() {
-        if (mPlaybackPositionUpdateTask == null) {
+    /**
+     * Attaches the floating window when it is enabled and allowed, inflating it on first
+     * use, and detaches it otherwise.
+     */
+    private void updateFloatingWindow() {
+        if (mSharedPreferences == null) {
             return;
         }
-        synchronized (mLock) {
-            if (mPlaybackPositionUpdateTask == null) {
-                return;
+
+        if (mSharedPreferences.getBoolean("floating_window", false)
+                && Settings.canDrawOverlays(this)) {
+            if (mFloatingWindow == null) {
+                mFloatingWindow = createFloatingWindow();
             }
-            mPlaybackPositionUpdateTask.cancel(false);
-            mPlaybackPositionUpdateTask = null;
+            mFloatingWindow.attach();
+        } else if (mFloatingWindow != null) {
+            mFloatingWindow.detach();
         }
     }
 
     @NonNull
-    private PendingIntent createActionPendingIntent(@NonNull final String action) {
-        return PendingIntent.getBroadcast(
-                this,
-                0,
-                new Intent(action),
-                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE
+    private FloatingWindow createFloatingWindow() {
+        final Context context = new ContextThemeWrapper(this, R.style.Theme_AudioPlayer);
+        final FloatingWindow floatingWindow = new FloatingWindow(context);
+        floatingWindow.setOnWindowStateChangeListener(this::updateRenderMode);
+        floatingWindow.setWindowPosition(
+                mSharedPreferences.getInt("floating_window_x", 0),
+                mSharedPreferences.getInt("floating_window_y", 0)
         );
+        floatingWindow.setOnWindowMoveListener((x, y) -> {
+            if (mSharedPreferences != null) {
+                mSharedPreferences.edit()
+                        .putInt("floating_window_x", x)
+                        .putInt("floating_window_y", y)
+                        .apply();
+            }
+        });
+        floatingWindow.setOnSettingsViewClickListener(v -> goToSettings());
+        floatingWindow.setOnCloseViewClickListener(v -> stopSelf());
+        floatingWindow.setOnStateViewClickListener(v -> mPlaybackController.togglePlayback());
+        floatingWindow.setOnLoopViewClickListener(v -> mPlaybackController.toggleLooping());
+        floatingWindow.setOnLoopViewLongClickListener(v -> {
+            markLoopPoint();
+            return true;
+        });
+        floatingWindow.setOnTimelineViewChangeListener((slider, value, fromUser) -> {
+            if (fromUser) {
+                mPlaybackController.scrubTo((long) value);
+            }
+        });
+        floatingWindow.setOnTimelineViewTouchListener(new Slider.OnSliderTouchListener() {
+            @SuppressLint("RestrictedApi")
+            @Override
+            public void onStartTrackingTouch(@NonNull Slider slider) {
+            }
+
+            @SuppressLint("RestrictedApi")
+            @Override
+            public void onStopTrackingTouch(@NonNull Slider slider) {
+                mPlaybackController.seekTo((long) slider.getValue());
+            }
+        });
+
+        // Catch up with what was set before it existed
+        floatingWindow.setTitle(mTitle);
+        floatingWindow.setSubtitle(mSubtitle);
+        floatingWindow.setArtwork(mArtwork);
+        if (mPlaybackState.prepared) {
+            floatingWindow.setPlaying(mPlaybackState.playing);
+            floatingWindow.setLooping(mPlaybackState.looping);
+            floatingWindow.setTimeLine(mPlaybackClock.getPosition(), mPlaybackState.duration);
+        }
+        return floatingWindow;
+    }
+
+    /**
+     * Sets the loop start, then the loop end and turns looping on, then clears the range
+     * again, at the current position on successive calls.
+     */
+    private void markLoopPoint() {
+        if (!mPlaybackState.prepared) {
+            return;
+        }
+
+        final long position = mPlaybackClock.getPosition();
+        if (mLoopStart == NO_LOOP_POINT) {
+            mLoopStart = position;
+        } else if (mLoopRangeSet) {
+            mPlaybackController.setLoopRange(NO_LOOP_POINT, NO_LOOP_POINT);
+            mLoopStart = NO_LOOP_POINT;
+            mLoopRangeSet = false;
+        } else {
+            mPlaybackController.setLoopRange(
+                    Math.min(mLoopStart, position), Math.max(mLoopStart, position)
+            );
+            mLoopRangeSet = true;
+            if (!mPlaybackState.looping) {
+                mPlaybackController.toggleLooping();
+            }
+        }
+    }
+
+    /**
+     * Adapts the UI work to what can be seen. While the screen is off nothing is ticked,
+     * animated or posted, and turning it back on resyncs everything in one update.
+     */
+    private void updateRenderMode() {
+        if (mTimelineTicker == null) {
+            return;
+        }
+
+        final FloatingWindow floatingWindow = mFloatingWindow;
+        final boolean windowAttached = floatingWindow != null
+                && floatingWindow.isWindowAttached();
+        final boolean windowVisible = mScreenInteractive && windowAttached
+                && floatingWindow.getWindowVisibility() == View.VISIBLE;
+
+        // Timeline ticks
+        if (!mPlaybackState.playing || !mScreenInteractive || !windowAttached) {
+            mTimelineTicker.setMode(TimelineTicker.MODE_NONE);
+        } else if (windowVisible) {
+            mTimelineTicker.setMode(TimelineTicker.MODE_FRAME);
+        } else {
+            mTimelineTicker.setMode(TimelineTicker.MODE_SECOND);
+        }
+
+        // Marquee animations invalidate on every frame while running
+        if (floatingWindow != null) {
+            floatingWindow.setMarqueeEnabled(windowVisible);
+        }
+
+        // Notification refreshes
+        if (mNotificationPublisher != null) {
+            mNotificationPublisher.setDeferred(!mScreenInteractive);
+        }
+
+        // Catch up with the position that was not ticked meanwhile
+        if (mScreenInteractive && !mRenderedInteractive && floatingWindow != null
+                && mPlaybackState.prepared) {
+            floatingWindow.setTimeLine(mPlaybackClock.getPosition(), mPlaybackState.duration);
+        }
+        mRenderedInteractive = mScreenInteractive;
     }
 
-    @SuppressLint("Range")
-    private String getFileDisplayNameFromUri(Uri uri) {
-        final String scheme = uri.getScheme();
-
-        if (ContentResolver.SCHEME_FILE.equals(scheme)) {
-            return uri.getLastPathSegment();
-        } else if (ContentResolver.SCHEME_CONTENT.equals(scheme)) {
-            final String[] projection = {OpenableColumns.DISPLAY_NAME};
-            try (Cursor cursor = getContentResolver().query(uri, projection, null, null, null)) {
-                if (cursor != null && cursor.getCount() != 0) {
-                    cursor.moveToFirst();
-                    return cursor.getString(cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME));
+    @NonNull
+    static List<Uri> getUris(@NonNull final Intent intent) {
+        final List<Uri> uris = new ArrayList<>();
+        final Uri data = intent.getData();
+        if (data != null) {
+            uris.add(data);
+        }
+
+        final ClipData clipData = intent.getClipData();
+        if (clipData != null) {
+            for (int i = 0; i < clipData.getItemCount(); i++) {
+                final Uri uri = clipData.getItemAt(i).getUri();
+                // The data is often mirrored as the first clip item
+                if (uri != null && !(i == 0 && uri.equals(data))) {
+                    uris.add(uri);
                 }
             }
         }
+        return uris;
+    }
 
-        return uri.toString();
+    /**
+     * Plays the restored queue if an append asked for it before the queue was restored.
+     */
+    private void onQueueRestored() {
+        if (mPlayQueueOnRestore && mMetadataUri == null && mPendingUris == null) {
+            mPlayQueueOnRestore = false;
+            playCurrentEntry();
+        }
+    }
+
+    private void commitPendingUris() {
+        if (mPendingUris == null) {
+            return;
+        }
+
+        mPlaybackQueue.replace(mPendingUris);
+        mPendingUris = null;
+        mOpenTime = mPendingOpenTime;
+        mPendingOpenTime = 0L;
+        playCurrentEntry();
+    }
+
+    private void playCurrentEntry() {
+        final Uri uri = mPlaybackQueue.getCurrent();
+        if (uri == null) {
+            return;
+        }
+
+        // Set data source and prepare on the playback thread
+        mPlaybackController.setSource(uri);
+
+        // Set placeholder metadata and extract the real one
+        loadMetadata(uri);
+
+        prepareUpcomingEntries();
+    }
+
+    private void skipToNext() {
+        if (mPlaybackQueue != null && mPlaybackQueue.moveToNext()) {
+            playCurrentEntry();
+        }
+    }
+
+    /**
+     * Prepares the next entry for a gapless hand-off and prefetches metadata of the few
+     * after it, so skipping forward finds them resolved.
+     */
+    private void prepareUpcomingEntries() {
+        mNextUri = mPlaybackQueue.peek(1);
+        mPlaybackController.setNextSource(mNextUri);
+        for (int i = 1; i <= PREFETCH_COUNT; i++) {
+            final Uri uri = mPlaybackQueue.peek(i);
+            if (uri != null) {
+                mMetadataLoader.prefetch(uri);
+            }
+        }
+
+        if (mPlaybackState.prepared) {
+            mNotificationPublisher.setPlayback(
+                    mPlaybackState.playing, mPlaybackState.looping, mNextUri != null
+            );
+        }
+    }
+
+    private void loadMetadata(@NonNull final Uri uri) {
+        mMetadataUri = uri;
+        mLoopStart = NO_LOOP_POINT;
+        mLoopRangeSet = false;
+
+        // Set placeholder metadata until extraction finishes
+        setMetadata(mSourceResolver.peekDisplayName(uri), null, null, null, null);
+
+        // Extract media metadata
+        mMetadataLoader.load(uri, (loadedUri, metadata) -> setMetadata(
+                metadata.title, metadata.subtitle, metadata.artwork, metadata.artworkData,
+                metadata.artworkUri
+        ));
+    }
+
+    private void setMetadata(@Nullable final String title, @Nullable final String subtitle,
+                             @Nullable Bitmap artwork, @Nullable final byte[] artworkData,
+                             @Nullable final Uri artworkUri) {
+        if (artwork == null) {
+            artwork = getDefaultArtwork();
+        }
+        mTitle = title;
+        mSubtitle = subtitle;
+        mArtwork = artwork;
+
+        // Set metadata to floating window
+        if (mFloatingWindow != null) {
+            mFloatingWindow.setTitle(title);
+            mFloatingWindow.setSubtitle(subtitle);
+            mFloatingWindow.setArtwork(artwork);
+        }
+
+        // Set metadata to notification
+        if (mNotificationPublisher != null) {
+            mNotificationPublisher.setMetadata(title, subtitle, artwork, artworkData, artworkUri);
+        }
+    }
+
+    @NonNull
+    private Bitmap getDefaultArtwork() {
+        if (mDefaultArtwork == null) {
+            final Drawable drawable = DrawableCompat.wrap(
+                    Objects.requireNonNull(ContextCompat.getDrawable(this, R.drawable.ic_artwork))
+            ).mutate();
+            drawable.setTint(ContextCompat.getColor(this, R.color.tertiary_text_light));
+            mDefaultArtwork = convertDrawableToBitmap(drawable);
+        }
+        return mDefaultArtwork;
     }
 
     @NonNull
@@ -555,19 +881,34 @@ public class AudioPlayerService extends Service {
     }
 
     private static class FloatingWindow extends CardView {
-        private CharSequence mTitle;
+        private final AtomicReference<RenderState> mRenderState =
+                new AtomicReference<>(RenderState.EMPTY);
 
-        private CharSequence mSubtitle;
+        private final Timeline mTimeline = new Timeline();
 
-        private Bitmap mArtwork;
+        private final AtomicBoolean mIsFrameScheduled = new AtomicBoolean();
 
-        private boolean mIsPlaying;
+        private final Runnable mFrameCallback = this::applyRenderState;
 
-        private boolean mIsLooping;
+        private final Runnable mMoveCallback = this::applyMove;
 
-        private long mCurrentPosition;
+        private int mMoveX;
 
-        private long mDuration;
+        private int mMoveY;
+
+        private boolean mIsMoveScheduled;
+
+        private OnWindowMoveListener mOnWindowMoveListener;
+
+        private RenderState mAppliedRenderState;
+
+        private final DurationText mCurrentPositionText = new DurationText();
+
+        private final DurationText mDurationText = new DurationText();
+
+        private final DurationText mLabelText = new DurationText();
+
+        private String mLabel;
 
         private final AppCompatImageView mSettingsView;
 
@@ -595,8 +936,14 @@ public class AudioPlayerService extends Service {
 
         private Slider.OnSliderTouchListener mOnTimelineViewTouchListener;
 
+        private Slider.OnChangeListener mOnTimelineViewChangeListener;
+
         private boolean mIsTimelineTouching;
 
+        private Runnable mOnWindowStateChangeListener;
+
+        private boolean mIsWindowAttached;
+
         public FloatingWindow(@NonNull Context context) {
             super(context);
 
@@ -644,27 +991,34 @@ public class AudioPlayerService extends Service {
                         case MotionEvent.ACTION_DOWN:
                             mDiffX = -event.getX();
                             mDiffY = -event.getY();
+                            // Keep the card in one layer while it moves
+                            setLayerType(LAYER_TYPE_HARDWARE, null);
                             setCardElevation(dipToPx(8f));
                             break;
                         case MotionEvent.ACTION_UP:
+                        case MotionEvent.ACTION_CANCEL:
+                            endMove();
                             setCardElevation(dipToPx(2f));
+                            setLayerType(LAYER_TYPE_NONE, null);
                             break;
                         case MotionEvent.ACTION_MOVE:
-                            layoutParams.x = (int) (event.getRawX() + mDiffX);
-                            layoutParams.y = (int) (event.getRawY() + mDiffY);
-                            if (isAttachedToWindow()) {
-                                mWindowManager.updateViewLayout(FloatingWindow.this, layoutParams);
-                            }
+                            scheduleMove(
+                                    (int) (event.getRawX() + mDiffX),
+                                    (int) (event.getRawY() + mDiffY)
+                            );
                             break;
                     }
                     return true;
                 }
             });
 
-            mTitleView.setSelected(true);
-            mSubtitleView.setSelected(true);
             mLockView.setOnClickListener(v -> mLockView.setSelected(!mLockView.isSelected()));
-            mTimelineView.setLabelFormatter(value -> formatDuration((long) value));
+            mTimelineView.setLabelFormatter(value -> {
+                if (mLabelText.set((long) value) || mLabel == null) {
+                    mLabel = mLabelText.toString();
+                }
+                return mLabel;
+            });
             mTimelineView.addOnSliderTouchListener(new Slider.OnSliderTouchListener() {
                 @SuppressLint("RestrictedApi")
                 @Override
@@ -682,72 +1036,34 @@ public class AudioPlayerService extends Service {
 
         @AnyThread
         public void setTitle(CharSequence title) {
-            if (Objects.equals(mTitle, title)) {
-                return;
-            }
-            mTitle = title;
-            post(() -> mTitleView.setText(mTitle));
+            updateRenderState(state -> state.withTitle(title));
         }
 
         @AnyThread
         public void setSubtitle(CharSequence subtitle) {
-            if (Objects.equals(mSubtitle, subtitle)) {
-                return;
-            }
-            mSubtitle = subtitle;
-            post(() -> mSubtitleView.setText(mSubtitle));
+            updateRenderState(state -> state.withSubtitle(subtitle));
         }
 
         @AnyThread
         public void setArtwork(Bitmap artwork) {
-            if (Objects.equals(mArtwork, artwork)) {
-                return;
-            }
-            mArtwork = artwork;
-            post(() -> mArtworkView.setImageBitmap(mArtwork));
+            updateRenderState(state -> state.withArtwork(artwork));
         }
 
         @AnyThread
         public void setPlaying(boolean playing) {
-            if (mIsPlaying == playing) {
-                return;
-            }
-            mIsPlaying = playing;
-            post(() -> mStateView.setSelected(mIsPlaying));
+            updateRenderState(state -> state.withPlaying(playing));
         }
 
         @AnyThread
         public void setLooping(boolean looping) {
-            if (mIsLooping == looping) {
-                return;
-            }
-            mIsLooping = looping;
-            post(() -> mLoopView.setSelected(mIsLooping));
+            updateRenderState(state -> state.withLooping(looping));
         }
 
         @AnyThread
         public void setTimeLine(long currentPosition, long duration) {
-            if (mCurrentPosition == currentPosition && mDuration == duration) {
-                return;
+            if (mTimeline.set(currentPosition, duration)) {
+                scheduleFrame();
             }
-            mDuration = Math.max(0L, duration);
-            mCurrentPosition = Math.min(Math.max(0L, currentPosition), mDuration);
-            post(() -> {
-                if (!mIsTimelineTouching || mDuration != (long) mTimelineView.getValueTo()) {
-                    mTimelineView.setValueFrom(0L);
-                    if (mDuration <= 0L) {
-                        mTimelineView.setValueTo(Long.MAX_VALUE);
-                        mTimelineView.setEnabled(false);
-                    } else {
-                        mTimelineView.setValueTo(mDuration);
-                        mTimelineView.setEnabled(true);
-                    }
-                    mTimelineView.setValue(mCurrentPosition);
-                }
-
-                mCurrentPositionView.setText(formatDuration(mCurrentPosition));
-                mDurationView.setText(formatDuration(mDuration));
-            });
         }
 
         public void setOnSettingsViewClickListener(@Nullable final OnClickListener listener) {
@@ -766,6 +1082,11 @@ public class AudioPlayerService extends Service {
             mLoopView.setOnClickListener(listener);
         }
 
+        public void setOnLoopViewLongClickListener(
+                @Nullable final OnLongClickListener listener) {
+            mLoopView.setOnLongClickListener(listener);
+        }
+
         public void setOnTimelineViewTouchListener(
                 @Nullable final Slider.OnSliderTouchListener listener) {
             if (mOnTimelineViewTouchListener != null) {
@@ -778,6 +1099,54 @@ public class AudioPlayerService extends Service {
             }
         }
 
+        public void setOnTimelineViewChangeListener(
+                @Nullable final Slider.OnChangeListener listener) {
+            if (mOnTimelineViewChangeListener != null) {
+                mTimelineView.removeOnChangeListener(mOnTimelineViewChangeListener);
+            }
+
+            mOnTimelineViewChangeListener = listener;
+            if (mOnTimelineViewChangeListener != null) {
+                mTimelineView.addOnChangeListener(mOnTimelineViewChangeListener);
+            }
+        }
+
+        public void setOnWindowStateChangeListener(@Nullable final Runnable listener) {
+            mOnWindowStateChangeListener = listener;
+        }
+
+        /**
+         * Sets a listener called with the final position once a drag ends.
+         */
+        public void setOnWindowMoveListener(@Nullable final OnWindowMoveListener listener) {
+            mOnWindowMoveListener = listener;
+        }
+
+        public void setWindowPosition(final int x, final int y) {
+            final WindowManager.LayoutParams layoutParams =
+                    (WindowManager.LayoutParams) getLayoutParams();
+            layoutParams.x = x;
+            layoutParams.y = y;
+            if (isAttachedToWindow()) {
+                mWindowManager.updateViewLayout(this, layoutParams);
+            }
+        }
+
+        /**
+         * Runs the title and subtitle marquees, which redraw on every frame while enabled.
+         */
+        @MainThread
+        public void setMarqueeEnabled(final boolean enabled) {
+            if (mTitleView.isSelected() != enabled) {
+                mTitleView.setSelected(enabled);
+                mSubtitleView.setSelected(enabled);
+            }
+        }
+
+        public boolean isWindowAttached() {
+            return mIsWindowAttached;
+        }
+
         public void attach() {
             if (!isAttachedToWindow()) {
                 mWindowManager.addView(this, getLayoutParams());
@@ -790,10 +1159,140 @@ public class AudioPlayerService extends Service {
             }
         }
 
-        @SuppressLint("DefaultLocale")
-        @NonNull
-        private String formatDuration(final long duration) {
-            return String.format("%d:%02d", duration / 1000 / 60, (duration / 1000) % 60);
+        /**
+         * Keeps only the latest drag position and moves the window to it once per frame,
+         * since touch panels may report several moves per frame.
+         */
+        private void scheduleMove(final int x, final int y) {
+            mMoveX = x;
+            mMoveY = y;
+            if (!mIsMoveScheduled) {
+                mIsMoveScheduled = true;
+                postOnAnimation(mMoveCallback);
+            }
+        }
+
+        private void applyMove() {
+            mIsMoveScheduled = false;
+            final WindowManager.LayoutParams layoutParams =
+                    (WindowManager.LayoutParams) getLayoutParams();
+            if (layoutParams.x != mMoveX || layoutParams.y != mMoveY) {
+                setWindowPosition(mMoveX, mMoveY);
+            }
+        }
+
+        private void endMove() {
+            if (mIsMoveScheduled) {
+                removeCallbacks(mMoveCallback);
+                applyMove();
+            }
+
+            if (mOnWindowMoveListener != null) {
+                final WindowManager.LayoutParams layoutParams =
+                        (WindowManager.LayoutParams) getLayoutParams();
+                mOnWindowMoveListener.onWindowMove(layoutParams.x, layoutParams.y);
+            }
+        }
+
+        @AnyThread
+        private void updateRenderState(@NonNull final UnaryOperator<RenderState> update) {
+            RenderState previous;
+            RenderState next;
+            do {
+                previous = mRenderState.get();
+                next = update.apply(previous);
+                if (next == previous) {
+                    return;
+                }
+            } while (!mRenderState.compareAndSet(previous, next));
+
+            scheduleFrame();
+        }
+
+        @AnyThread
+        private void scheduleFrame() {
+            PlaybackMetrics.increment(PlaybackMetrics.COUNTER_WINDOW_UPDATES);
+            if (mIsFrameScheduled.compareAndSet(false, true)) {
+                postOnAnimation(mFrameCallback);
+            }
+        }
+
+        private void applyRenderState() {
+            mIsFrameScheduled.set(false);
+            PlaybackMetrics.increment(PlaybackMetrics.COUNTER_WINDOW_FRAMES);
+            final RenderState state = mRenderState.get();
+            final RenderState applied = mAppliedRenderState;
+            if (state != applied) {
+                if (applied == null || !Objects.equals(applied.title, state.title)) {
+                    mTitleView.setText(state.title);
+                }
+                if (applied == null || !Objects.equals(applied.subtitle, state.subtitle)) {
+                    mSubtitleView.setText(state.subtitle);
+                }
+                if (applied == null || applied.artwork != state.artwork) {
+                    mArtworkView.setImageBitmap(state.artwork);
+                }
+                if (applied == null || applied.playing != state.playing) {
+                    mStateView.setSelected(state.playing);
+                }
+                if (applied == null || applied.looping != state.looping) {
+                    mLoopView.setSelected(state.looping);
+                }
+                mAppliedRenderState = state;
+            }
+
+            if (mTimeline.take()) {
+                applyTimeline(mTimeline.getDuration(), mTimeline.getPosition());
+            }
+        }
+
+        private void applyTimeline(final long duration, final long currentPosition) {
+            if (!mIsTimelineTouching || duration != (long) mTimelineView.getValueTo()) {
+                mTimelineView.setValueFrom(0L);
+                if (duration <= 0L) {
+                    mTimelineView.setValueTo(Long.MAX_VALUE);
+                    mTimelineView.setEnabled(false);
+                } else {
+                    mTimelineView.setValueTo(duration);
+                    mTimelineView.setEnabled(true);
+                }
+                mTimelineView.setValue(currentPosition);
+            }
+
+            if (mCurrentPositionText.set(currentPosition)) {
+                mCurrentPositionView.setText(
+                        mCurrentPositionText.getChars(), 0, mCurrentPositionText.length()
+                );
+            }
+            if (mDurationText.set(duration)) {
+                mDurationView.setText(mDurationText.getChars(), 0, mDurationText.length());
+            }
+        }
+
+        @Override
+        protected void onAttachedToWindow() {
+            super.onAttachedToWindow();
+            mIsWindowAttached = true;
+            notifyWindowStateChanged();
+        }
+
+        @Override
+        protected void onDetachedFromWindow() {
+            super.onDetachedFromWindow();
+            mIsWindowAttached = false;
+            notifyWindowStateChanged();
+        }
+
+        @Override
+        protected void onWindowVisibilityChanged(int visibility) {
+            super.onWindowVisibilityChanged(visibility);
+            notifyWindowStateChanged();
+        }
+
+        private void notifyWindowStateChanged() {
+            if (mOnWindowStateChangeListener != null) {
+                mOnWindowStateChangeListener.run();
+            }
         }
 
         private float dipToPx(final float dip) {
@@ -801,5 +1300,62 @@ public class AudioPlayerService extends Service {
                     TypedValue.COMPLEX_UNIT_DIP, dip, getResources().getDisplayMetrics()
             );
         }
+
+        interface OnWindowMoveListener {
+            void onWindowMove(int x, int y);
+        }
+
+        private static final class RenderState {
+            static final RenderState EMPTY = new RenderState(null, null, null, false, false);
+
+            final CharSequence title;
+
+            final CharSequence subtitle;
+
+            final Bitmap artwork;
+
+            final boolean playing;
+
+            final boolean looping;
+
+            RenderState(CharSequence title, CharSequence subtitle, Bitmap artwork,
+                        boolean playing, boolean looping) {
+                this.title = title;
+                this.subtitle = subtitle;
+                this.artwork = artwork;
+                this.playing = playing;
+                this.looping = looping;
+            }
+
+            @NonNull
+            RenderState withTitle(CharSequence title) {
+                return Objects.equals(this.title, title)
+                        ? this : new RenderState(title, subtitle, artwork, playing, looping);
+            }
+
+            @NonNull
+            RenderState withSubtitle(CharSequence subtitle) {
+                return Objects.equals(this.subtitle, subtitle)
+                        ? this : new RenderState(title, subtitle, artwork, playing, looping);
+            }
+
+            @NonNull
+            RenderState withArtwork(Bitmap artwork) {
+                return this.artwork == artwork
+                        ? this : new RenderState(title, subtitle, artwork, playing, looping);
+            }
+
+            @NonNull
+            RenderState withPlaying(boolean playing) {
+                return this.playing == playing
+                        ? this : new RenderState(title, subtitle, artwork, playing, looping);
+            }
+
+            @NonNull
+            RenderState withLooping(boolean looping) {
+                return this.looping == looping
+                        ? this : new RenderState(title, subtitle, artwork, playing, looping);
+            }
+        }
     }
 }
@@ -0,0 +1,77 @@
+package com.obby.android.audioplayer;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Byte-bounded pool of mutable bitmaps that can be handed to {@code inBitmap}.
+ */
+final class BitmapPool {
+    private final long mMaxBytes;
+
+    private final ArrayDeque<Bitmap> mBitmaps = new ArrayDeque<>();
+
+    private long mBytes;
+
+    BitmapPool(final long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    @Nullable
+    synchronized Bitmap get(final int width, final int height,
+                            @NonNull final Bitmap.Config config) {
+        final long requiredBytes = (long) width * height * bytesPerPixel(config);
+        final Iterator<Bitmap> iterator = mBitmaps.iterator();
+        while (iterator.hasNext()) {
+            final Bitmap bitmap = iterator.next();
+            if (bitmap.getAllocationByteCount() >= requiredBytes) {
+                iterator.remove();
+                mBytes -= bitmap.getAllocationByteCount();
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    synchronized void put(@Nullable final Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getAllocationByteCount() > mMaxBytes) {
+            return;
+        }
+
+        mBitmaps.addFirst(bitmap);
+        mBytes += bitmap.getAllocationByteCount();
+        while (mBytes > mMaxBytes) {
+            final Bitmap evicted = mBitmaps.removeLast();
+            mBytes -= evicted.getAllocationByteCount();
+            evicted.recycle();
+        }
+    }
+
+    synchronized void clear() {
+        for (final Bitmap bitmap : mBitmaps) {
+            bitmap.recycle();
+        }
+        mBitmaps.clear();
+        mBytes = 0L;
+    }
+
+    private static int bytesPerPixel(@NonNull final Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            case RGBA_F16:
+                return 8;
+            default:
+                return 4;
+        }
+    }
+}
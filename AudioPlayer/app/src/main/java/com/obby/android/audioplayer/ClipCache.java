@@ -0,0 +1,83 @@
+package com.obby.android.audioplayer;
+
+import android.util.LruCache;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decoded PCM of short clips, bounded by the bytes it holds and evicting the least
+ * recently played clip first. Clips are direct buffers, so static tracks load them without
+ * another copy on the Java heap.
+ */
+final class ClipCache {
+    private final int mMaxClipBytes;
+
+    private final LruCache<String, Clip> mClips;
+
+    ClipCache(final int maxBytes, final int maxClipBytes) {
+        mMaxClipBytes = maxClipBytes;
+        mClips = new LruCache<String, Clip>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Clip clip) {
+                return clip.data.capacity();
+            }
+        };
+    }
+
+    /**
+     * Largest decoded size of a clip that is kept.
+     */
+    @AnyThread
+    int getMaxClipBytes() {
+        return mMaxClipBytes;
+    }
+
+    @AnyThread
+    @Nullable
+    Clip get(@Nullable final String key) {
+        return key == null ? null : mClips.get(key);
+    }
+
+    @AnyThread
+    void put(@NonNull final String key, @NonNull final Clip clip) {
+        mClips.put(key, clip);
+    }
+
+    @AnyThread
+    void clear() {
+        mClips.evictAll();
+    }
+
+    static final class Clip {
+        /**
+         * Read-only, callers read through {@link ByteBuffer#duplicate}.
+         */
+        @NonNull
+        final ByteBuffer data;
+
+        final int sampleRate;
+
+        final int channelCount;
+
+        final int encoding;
+
+        final int frameSize;
+
+        Clip(@NonNull ByteBuffer data, int sampleRate, int channelCount, int encoding,
+             int frameSize) {
+            this.data = data;
+            this.sampleRate = sampleRate;
+            this.channelCount = channelCount;
+            this.encoding = encoding;
+            this.frameSize = frameSize;
+        }
+
+        int getFrameCount() {
+            return data.capacity() / frameSize;
+        }
+    }
+}
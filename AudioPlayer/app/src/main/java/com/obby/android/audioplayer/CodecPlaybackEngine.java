@@ -0,0 +1,1587 @@
+package com.obby.android.audioplayer;
+
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaPlayer;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.Process;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.WorkerThread;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Playback engine decoding with {@link MediaExtractor} and an async {@link MediaCodec} into
+ * a streaming {@link AudioTrack}. The track buffer size is chosen by the caller. In
+ * low-latency mode the track asks for the fast path and the engine reports prepared as
+ * soon as the first decoded audio is queued, so starting plays right away. Positions are
+ * mapped from {@link AudioTrack#getTimestamp} and exact to the frame.
+ * <p>
+ * Looping is seamless: encoder delay and padding are trimmed here rather than by the codec,
+ * the input wraps around ahead of the output, and the decoded audio is cut at the exact
+ * frames of the loop range, so the track never runs dry at the wrap.
+ * <p>
+ * Short clips are decoded once into a {@link ClipCache} and played from memory with a
+ * static track, which loops and restarts without decoding or reading storage again. Their
+ * positions come from the head of the track rather than its timestamps.
+ * <p>
+ * In offload mode, formats the device decodes in hardware skip the codec: compressed samples
+ * go straight to an offloaded track and are written when the track asks for more, so the
+ * CPU sleeps while playing. Offloaded audio cannot be cut at the loop range, so looping
+ * sources are decoded as above, and turning looping on moves the source over to the codec.
+ * <p>
+ * Extractor, codec and track live on a decode thread. Calls return right away, except
+ * setting the source, resetting and releasing, which wait for the decode thread so the
+ * caller may close the source afterwards.
+ */
+final class CodecPlaybackEngine implements PlaybackEngine {
+    private static final long TIMESTAMP_POLL_MILLIS = 20L;
+
+    private static final int TIMESTAMP_POLL_COUNT = 50;
+
+    /**
+     * Output time jumps larger than this start a new segment of the timeline.
+     */
+    private static final long DISCONTINUITY_THRESHOLD_US = 20_000L;
+
+    /**
+     * Audio decoded before the loop start after a wrap, so the decoder state has settled
+     * when the kept audio begins.
+     */
+    private static final long LOOP_PREROLL_US = 100_000L;
+
+    private static final String KEY_ENCODER_DELAY = "encoder-delay";
+
+    private static final String KEY_ENCODER_PADDING = "encoder-padding";
+
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    /**
+     * Bit rate assumed for sizing the offload buffer when the source does not tell.
+     */
+    private static final int DEFAULT_OFFLOAD_BIT_RATE = 320_000;
+
+    private static final int DEFAULT_MAX_SAMPLE_SIZE = 64 * 1024;
+
+    static final String OUTPUT_PATH_CODEC = "codec";
+
+    static final String OUTPUT_PATH_CLIP = "clip";
+
+    static final String OUTPUT_PATH_OFFLOAD = "offload";
+
+    private static final String NO_OFFLOAD_NO_SOURCE = "no source";
+
+    private static final String NO_OFFLOAD_CLIP = "clip played from memory";
+
+    private static final String NO_OFFLOAD_LOOPING = "looping";
+
+    private final Handler mCallbackHandler;
+
+    private final HandlerThread mDecodeThread =
+            new HandlerThread("AudioDecode", Process.THREAD_PRIORITY_AUDIO);
+
+    private final Handler mDecodeHandler;
+
+    private final PowerManager.WakeLock mWakeLock;
+
+    private final AudioAttributes mAudioAttributes;
+
+    private final int mBufferMillis;
+
+    private final boolean mLowLatency;
+
+    private final ClipCache mClipCache;
+
+    private final int mOffloadBufferMillis;
+
+    private final Runnable mDrainRunnable = this::drainOutput;
+
+    private final Object mTimelineLock = new Object();
+
+    // Timeline, guarded by mTimelineLock
+    private final ArrayDeque<Segment> mSegments = new ArrayDeque<>();
+
+    private final AudioTimestamp mTimestamp = new AudioTimestamp();
+
+    private AudioTrack mTrack;
+
+    private int mSampleRate;
+
+    private long mIdlePositionUs;
+
+    private boolean mClipTrack;
+
+    // Callback thread only
+    private Listener mListener;
+
+    // Any thread
+    private volatile boolean mPlaying;
+
+    private volatile boolean mLooping;
+
+    private volatile long mDurationMs;
+
+    private volatile int mGeneration;
+
+    private volatile PlaybackEngine mNextEngine;
+
+    private volatile long mLoopStartUs;
+
+    private volatile long mLoopEndUs = Long.MAX_VALUE;
+
+    private volatile String mOutputPath = OUTPUT_PATH_CODEC;
+
+    private volatile String mNoOffloadReason = NO_OFFLOAD_NO_SOURCE;
+
+    // Decode thread only
+    private MediaExtractor mExtractor;
+
+    private MediaFormat mInputFormat;
+
+    private MediaCodec mCodec;
+
+    private int mFrameSize;
+
+    private int mChannelCount;
+
+    private int mEncoding;
+
+    private ClipCache.Clip mClip;
+
+    private String mClipKey;
+
+    private ByteBuffer mClipBuilder;
+
+    private AudioFormat mOffloadFormat;
+
+    private ByteBuffer mOffloadSample;
+
+    private int mOffloadDelayFrames;
+
+    private int mOffloadPaddingFrames;
+
+    private final ArrayDeque<Integer> mOutputIndexes = new ArrayDeque<>();
+
+    private final ArrayDeque<MediaCodec.BufferInfo> mOutputInfos = new ArrayDeque<>();
+
+    private int mOutputOffset;
+
+    private long mWrittenFrames;
+
+    private boolean mPrepared;
+
+    private boolean mCompleted;
+
+    private boolean mSeekPending;
+
+    private long mSeekTargetUs = -1L;
+
+    private int mTimestampPolls;
+
+    private long mDelayUs;
+
+    private long mPaddingUs;
+
+    private long mContentEndUs = Long.MAX_VALUE;
+
+    private long mLastInputTimeUs = NO_TIME;
+
+    private long mLastInputDurationUs;
+
+    private long mLastOutputTimeUs = NO_TIME;
+
+    private boolean mWrapped;
+
+    private boolean mOutputEnded;
+
+    private int mOutputEnd;
+
+    private boolean mOutputStarted;
+
+    CodecPlaybackEngine(@NonNull final Context context, @NonNull final AudioAttributes attributes,
+                        final int bufferMillis, final boolean lowLatency,
+                        @Nullable final ClipCache clipCache, final int offloadBufferMillis) {
+        mCallbackHandler = new Handler(Objects.requireNonNull(Looper.myLooper()));
+        mAudioAttributes = attributes;
+        mBufferMillis = bufferMillis;
+        mLowLatency = lowLatency;
+        mClipCache = clipCache;
+        mOffloadBufferMillis = offloadBufferMillis;
+        mWakeLock = context.getSystemService(PowerManager.class)
+                .newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "AudioPlayer:decode");
+        mWakeLock.setReferenceCounted(false);
+        mDecodeThread.start();
+        mDecodeHandler = new Handler(mDecodeThread.getLooper());
+    }
+
+    @Override
+    public void setListener(@Nullable final Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void setDataSource(@NonNull final SourceResolver.Source source) throws IOException {
+        final IOException[] error = new IOException[1];
+        runOnDecodeThread(() -> {
+            try {
+                openExtractor(source);
+            } catch (IOException e) {
+                error[0] = e;
+            } catch (RuntimeException e) {
+                error[0] = new IOException(e);
+            }
+        });
+        if (error[0] != null) {
+            throw error[0];
+        }
+    }
+
+    @Override
+    public void prepareAsync() {
+        mDecodeHandler.post(this::prepareInternal);
+    }
+
+    @Override
+    public void start() {
+        mPlaying = true;
+        mDecodeHandler.post(this::startInternal);
+    }
+
+    @Override
+    public void pause() {
+        mPlaying = false;
+        mDecodeHandler.post(this::pauseInternal);
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return mPlaying;
+    }
+
+    @Override
+    public void setLooping(final boolean looping) {
+        mLooping = looping;
+        mDecodeHandler.post(() -> {
+            leaveOffload();
+            updateClipLoop();
+        });
+    }
+
+    @Override
+    public boolean isLooping() {
+        return mLooping;
+    }
+
+    @Override
+    public void seekTo(final long positionMs, final int mode) {
+        mDecodeHandler.post(() -> seekInternal(TimeUnit.MILLISECONDS.toMicros(positionMs), mode));
+    }
+
+    @Override
+    public void setLoopRange(final long startMs, final long endMs) {
+        mLoopStartUs = startMs < 0L ? 0L : TimeUnit.MILLISECONDS.toMicros(startMs);
+        mLoopEndUs = endMs < 0L ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toMicros(endMs);
+        mDecodeHandler.post(this::updateClipLoop);
+    }
+
+    @Override
+    public boolean supportsSeamlessLooping() {
+        return true;
+    }
+
+    @Override
+    public long getDuration() {
+        return mDurationMs;
+    }
+
+    @Override
+    public long getCurrentPosition() {
+        synchronized (mTimelineLock) {
+            if (mTrack == null) {
+                return TimeUnit.MICROSECONDS.toMillis(mIdlePositionUs);
+            }
+            final long frames = mTrack.getPlaybackHeadPosition() & 0xffffffffL;
+            return TimeUnit.MICROSECONDS.toMillis(getMediaTimeUs(frames));
+        }
+    }
+
+    @Override
+    public boolean anchor(@NonNull final PlaybackClock clock) {
+        synchronized (mTimelineLock) {
+            if (!getTimestamp()) {
+                return false;
+            }
+            clock.anchor(
+                    getMediaTimeUs(mTimestamp.framePosition), mTimestamp.nanoTime,
+                    mPlaying ? 1f : 0f
+            );
+            return true;
+        }
+    }
+
+    @Override
+    public void setNextEngine(@Nullable final PlaybackEngine next) {
+        mNextEngine = next;
+    }
+
+    @NonNull
+    @Override
+    public String getOutputPath() {
+        return mOutputPath;
+    }
+
+    @Override
+    public boolean holdsWakeLock() {
+        return !OUTPUT_PATH_OFFLOAD.equals(mOutputPath);
+    }
+
+    @Nullable
+    @Override
+    public String getNoOffloadReason() {
+        return mNoOffloadReason;
+    }
+
+    @Override
+    public void reset() {
+        mPlaying = false;
+        mNextEngine = null;
+        runOnDecodeThread(this::resetInternal);
+    }
+
+    @Override
+    public void release() {
+        reset();
+        mDecodeThread.quitSafely();
+    }
+
+    @WorkerThread
+    private void openExtractor(@NonNull final SourceResolver.Source source) throws IOException {
+        resetInternal();
+
+        // Hot clips play from memory without opening the source
+        if (mClipCache != null) {
+            mClipKey = source.getCacheKey();
+            mClip = mClipCache.get(mClipKey);
+            if (mClip != null) {
+                PlaybackMetrics.increment(PlaybackMetrics.COUNTER_CLIP_HITS);
+                mOutputPath = OUTPUT_PATH_CLIP;
+                mNoOffloadReason = NO_OFFLOAD_CLIP;
+                mDurationMs = TimeUnit.MICROSECONDS.toMillis(
+                        toDurationUs(mClip.getFrameCount(), mClip.sampleRate)
+                );
+                return;
+            }
+        }
+
+        final MediaExtractor extractor = new MediaExtractor();
+        mExtractor = extractor;
+        source.setDataSource(extractor);
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            final MediaFormat format = extractor.getTrackFormat(i);
+            final String mime = format.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                extractor.selectTrack(i);
+                mInputFormat = format;
+                mDurationMs = format.containsKey(MediaFormat.KEY_DURATION)
+                        ? TimeUnit.MICROSECONDS.toMillis(format.getLong(MediaFormat.KEY_DURATION))
+                        : 0L;
+
+                // Trim the gapless metadata here, the codec would only do it once per flush
+                final int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                final int paddingFrames = getInteger(format, KEY_ENCODER_PADDING);
+                // Timestamps of extractors applying an edit list already exclude the delay
+                final int delayFrames = extractor.getSampleTime() < 0L
+                        ? 0 : getInteger(format, KEY_ENCODER_DELAY);
+                mPaddingUs = toDurationUs(paddingFrames, sampleRate);
+                mDelayUs = toDurationUs(delayFrames, sampleRate);
+
+                // Hand formats the hardware decodes to an offloaded track, unless looping
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+                    mNoOffloadReason = "needs Android 10";
+                } else if (mOffloadBufferMillis <= 0) {
+                    mNoOffloadReason = "not requested";
+                } else if (mLooping) {
+                    mNoOffloadReason = NO_OFFLOAD_LOOPING;
+                } else {
+                    mOffloadFormat = getOffloadFormat(format);
+                    mNoOffloadReason = mOffloadFormat == null ? "format not offloadable" : null;
+                    if (mOffloadFormat != null) {
+                        mOutputPath = OUTPUT_PATH_OFFLOAD;
+                        mOffloadSample = ByteBuffer.allocateDirect(format.containsKey(
+                                MediaFormat.KEY_MAX_INPUT_SIZE
+                        ) ? format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE)
+                                : DEFAULT_MAX_SAMPLE_SIZE);
+                        mOffloadSample.limit(0);
+                        mOffloadDelayFrames = delayFrames;
+                        mOffloadPaddingFrames = paddingFrames;
+                        return;
+                    }
+                }
+                format.setInteger(KEY_ENCODER_DELAY, 0);
+                format.setInteger(KEY_ENCODER_PADDING, 0);
+                return;
+            }
+        }
+        throw new IOException("No audio track");
+    }
+
+    @WorkerThread
+    private void prepareInternal() {
+        if (mClip != null) {
+            if (mTrack == null && createClipTrack()) {
+                onOutputQueued();
+            }
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && mOffloadFormat != null) {
+            if (mTrack == null && createOffloadTrack()) {
+                feedOffload();
+            }
+            return;
+        }
+        if (mInputFormat == null || mCodec != null) {
+            return;
+        }
+        if (createCodec()) {
+            startClip();
+        }
+    }
+
+    @WorkerThread
+    private boolean createCodec() {
+        try {
+            mCodec = MediaCodec.createDecoderByType(
+                    Objects.requireNonNull(mInputFormat.getString(MediaFormat.KEY_MIME))
+            );
+            mCodec.setCallback(new CodecCallback(mCodec), mDecodeHandler);
+            mCodec.configure(mInputFormat, null, null, 0);
+            mCodec.start();
+            return true;
+        } catch (IOException | RuntimeException e) {
+            fail();
+            return false;
+        }
+    }
+
+    /**
+     * Decodes a short source into memory in full. Its size is estimated from the PCM
+     * encoding the configured codec outputs, so float output is not taken for 16-bit.
+     */
+    @WorkerThread
+    private void startClip() {
+        if (mClipKey == null || mDurationMs <= 0L) {
+            return;
+        }
+        final long pcmBytes = mDurationMs * mInputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE)
+                / 1000L * mInputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+                * getBytesPerSample(getPcmEncoding(mCodec.getOutputFormat()));
+        if (pcmBytes <= mClipCache.getMaxClipBytes()) {
+            mClipBuilder = ByteBuffer.allocateDirect((int) pcmBytes);
+        }
+    }
+
+    @WorkerThread
+    private void startInternal() {
+        if (!mPlaying || (mCodec == null && mClip == null && mOffloadFormat == null)) {
+            return;
+        }
+
+        // Like MediaPlayer, starting after completion plays from the beginning
+        if (mCompleted) {
+            mCompleted = false;
+            if (mClip != null) {
+                repositionClip(0L);
+            } else {
+                seekInternal(0L, MediaPlayer.SEEK_PREVIOUS_SYNC);
+            }
+        }
+        if (mOffloadFormat == null) {
+            mWakeLock.acquire();
+        }
+        if (mTrack != null) {
+            mTrack.play();
+            pollTimestamp(0);
+            if (mOffloadFormat != null && mOutputEnded) {
+                // Everything is written, play out the rest
+                mTrack.stop();
+            }
+        }
+        drainOutput();
+    }
+
+    @WorkerThread
+    private void pauseInternal() {
+        if (mPlaying) {
+            return;
+        }
+
+        mDecodeHandler.removeCallbacks(mDrainRunnable);
+        if (mTrack != null) {
+            mTrack.pause();
+        }
+        mWakeLock.release();
+    }
+
+    @WorkerThread
+    private void seekInternal(final long positionUs, final int mode) {
+        if (mClip != null && mTrack != null) {
+            mCompleted = false;
+            repositionClip(toFrames(positionUs));
+            mSeekPending = true;
+            onOutputQueued();
+            return;
+        }
+        if (mOffloadFormat != null) {
+            seekOffload(positionUs, mode);
+            return;
+        }
+        if (mExtractor == null || mCodec == null) {
+            return;
+        }
+
+        // Audio decoded from elsewhere than the start is no clip, stream it instead
+        mClipBuilder = null;
+
+        // Closest seeks decode from the sync sample before and drop audio up to the target
+        mExtractor.seekTo(positionUs + mDelayUs, mode == MediaPlayer.SEEK_NEXT_SYNC
+                ? MediaExtractor.SEEK_TO_NEXT_SYNC
+                : mode == MediaPlayer.SEEK_CLOSEST_SYNC
+                ? MediaExtractor.SEEK_TO_CLOSEST_SYNC : MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        mSeekTargetUs = mode == MediaPlayer.SEEK_CLOSEST ? positionUs : -1L;
+        mSeekPending = true;
+        mCompleted = false;
+        mOutputEnded = false;
+        mWrapped = false;
+        mLastInputTimeUs = NO_TIME;
+        mLastOutputTimeUs = NO_TIME;
+
+        // Flush the pipeline, the track head position restarts at 0
+        mDecodeHandler.removeCallbacks(mDrainRunnable);
+        mOutputIndexes.clear();
+        mOutputInfos.clear();
+        mOutputOffset = 0;
+        mOutputStarted = false;
+        try {
+            mCodec.flush();
+            mCodec.start();
+        } catch (RuntimeException e) {
+            fail();
+            return;
+        }
+        synchronized (mTimelineLock) {
+            if (mTrack != null) {
+                mTrack.pause();
+                mTrack.flush();
+                if (mPlaying) {
+                    mTrack.play();
+                }
+            }
+            mWrittenFrames = 0L;
+            mSegments.clear();
+            mSegments.add(new Segment(0L, positionUs));
+            mIdlePositionUs = positionUs;
+        }
+    }
+
+    @WorkerThread
+    private void resetInternal() {
+        mGeneration++;
+        mDecodeHandler.removeCallbacksAndMessages(null);
+        mWakeLock.release();
+        if (mCodec != null) {
+            mCodec.release();
+            mCodec = null;
+        }
+        if (mExtractor != null) {
+            mExtractor.release();
+            mExtractor = null;
+        }
+        synchronized (mTimelineLock) {
+            if (mTrack != null) {
+                mTrack.release();
+                mTrack = null;
+            }
+            mSegments.clear();
+            mIdlePositionUs = 0L;
+            mClipTrack = false;
+        }
+        mInputFormat = null;
+        mDurationMs = 0L;
+        mOutputIndexes.clear();
+        mOutputInfos.clear();
+        mOutputOffset = 0;
+        mOutputStarted = false;
+        mWrittenFrames = 0L;
+        mPrepared = false;
+        mCompleted = false;
+        mSeekPending = false;
+        mSeekTargetUs = -1L;
+        mDelayUs = 0L;
+        mPaddingUs = 0L;
+        mContentEndUs = Long.MAX_VALUE;
+        mLastInputTimeUs = NO_TIME;
+        mLastOutputTimeUs = NO_TIME;
+        mWrapped = false;
+        mOutputEnded = false;
+        mLoopStartUs = 0L;
+        mLoopEndUs = Long.MAX_VALUE;
+        mClip = null;
+        mClipKey = null;
+        mClipBuilder = null;
+        mOffloadFormat = null;
+        mOffloadSample = null;
+        mOutputPath = OUTPUT_PATH_CODEC;
+        mNoOffloadReason = NO_OFFLOAD_NO_SOURCE;
+    }
+
+    @WorkerThread
+    private void queueInput(@NonNull final MediaCodec codec, final int index) {
+        final ByteBuffer buffer = codec.getInputBuffer(index);
+        if (buffer == null) {
+            return;
+        }
+
+        int size = -1;
+        final boolean looping = mLooping && mClipBuilder == null;
+        if (!looping || mLastInputTimeUs == NO_TIME
+                || mLastInputTimeUs - mDelayUs < mLoopEndUs + LOOP_PREROLL_US) {
+            size = mExtractor.readSampleData(buffer, 0);
+        }
+        if (size < 0 && mLastInputTimeUs != NO_TIME && mContentEndUs == Long.MAX_VALUE
+                && mLastInputTimeUs - mDelayUs < mLoopEndUs + LOOP_PREROLL_US) {
+            // The end of the source is known from here on, ahead of its decoded audio
+            mContentEndUs = mLastInputTimeUs + mLastInputDurationUs - mDelayUs - mPaddingUs;
+        }
+        if (size < 0 && looping) {
+            // Wrap around ahead of the output, which cuts the audio at the loop range
+            mExtractor.seekTo(Math.max(0L, mLoopStartUs + mDelayUs - LOOP_PREROLL_US),
+                    MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            mLastInputTimeUs = NO_TIME;
+            size = mExtractor.readSampleData(buffer, 0);
+        }
+        if (size < 0) {
+            codec.queueInputBuffer(index, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            return;
+        }
+
+        final long sampleTimeUs = mExtractor.getSampleTime();
+        if (mLastInputTimeUs != NO_TIME && sampleTimeUs > mLastInputTimeUs) {
+            mLastInputDurationUs = sampleTimeUs - mLastInputTimeUs;
+        }
+        mLastInputTimeUs = sampleTimeUs;
+        codec.queueInputBuffer(index, 0, size, sampleTimeUs, 0);
+        mExtractor.advance();
+    }
+
+    /**
+     * Writes as much decoded audio as the track takes without blocking. While playing the
+     * rest is retried once part of the track buffer has played.
+     */
+    @WorkerThread
+    private void drainOutput() {
+        mDecodeHandler.removeCallbacks(mDrainRunnable);
+        while (mCodec != null && !mOutputIndexes.isEmpty()) {
+            final int index = mOutputIndexes.peek();
+            final MediaCodec.BufferInfo info = mOutputInfos.peek();
+            final boolean endOfStream = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+            final boolean written = info.size <= 0 || writeOutput(index, info);
+            if (mOutputIndexes.isEmpty()) {
+                // Abandoning a clip flushed the codec meanwhile
+                return;
+            }
+            if (!written) {
+                if (mPlaying) {
+                    mDecodeHandler.postDelayed(mDrainRunnable, Math.max(1L, mBufferMillis / 4));
+                }
+                if (!mLowLatency) {
+                    onOutputQueued();
+                }
+                return;
+            }
+
+            mOutputIndexes.poll();
+            mOutputInfos.poll();
+            mOutputOffset = 0;
+            mOutputStarted = false;
+            mCodec.releaseOutputBuffer(index, false);
+            if (endOfStream) {
+                onOutputEnded();
+                return;
+            }
+            if (mLowLatency) {
+                onOutputQueued();
+            }
+        }
+    }
+
+    /**
+     * Writes what is left of one output buffer, returning whether all of it was taken.
+     * Audio outside of the content, the loop range or before a closest seek target is cut
+     * at the exact frame.
+     */
+    @WorkerThread
+    private boolean writeOutput(final int index, @NonNull final MediaCodec.BufferInfo info) {
+        final ByteBuffer buffer = mCodec.getOutputBuffer(index);
+        if (buffer == null) {
+            return true;
+        }
+        if (mClipBuilder != null) {
+            if (mFrameSize == 0) {
+                readOutputFormat();
+            }
+        } else if (mTrack == null && !createTrack()) {
+            return true;
+        }
+
+        if (!mOutputStarted) {
+            final long startUs = info.presentationTimeUs - mDelayUs;
+
+            // A time jump back in the output is where the input wrapped around
+            final boolean wrap = mLastOutputTimeUs != NO_TIME
+                    && info.presentationTimeUs < mLastOutputTimeUs;
+            mLastOutputTimeUs = info.presentationTimeUs;
+            if (wrap) {
+                mWrapped = true;
+            }
+
+            long lowUs = mWrapped ? Math.max(0L, mLoopStartUs) : 0L;
+            if (mSeekTargetUs >= 0L) {
+                lowUs = Math.max(lowUs, mSeekTargetUs);
+            }
+            final long highUs = Math.min(mContentEndUs,
+                    mLooping && mClipBuilder == null ? mLoopEndUs : Long.MAX_VALUE);
+            final int frames = info.size / mFrameSize;
+            final int firstFrame = (int) Math.min(frames, Math.max(0L, toFrames(lowUs - startUs)));
+            final int endFrame = highUs == Long.MAX_VALUE
+                    ? frames : (int) Math.min(frames, Math.max(0L, toFrames(highUs - startUs)));
+            if (endFrame <= firstFrame) {
+                return true;
+            }
+
+            mSeekTargetUs = -1L;
+            mOutputStarted = true;
+            mOutputOffset = firstFrame * mFrameSize;
+            mOutputEnd = endFrame * mFrameSize;
+            if (mClipBuilder != null) {
+                buffer.limit(info.offset + mOutputEnd);
+                buffer.position(info.offset + mOutputOffset);
+                appendToClip(buffer);
+                return true;
+            }
+            final boolean segmentStarted =
+                    startSegment(startUs + toDurationUs(firstFrame, mSampleRate));
+            if (segmentStarted && wrap && mWrittenFrames > 0L) {
+                // Re-anchor the clock once the wrap is heard
+                mTrack.setNotificationMarkerPosition((int) mWrittenFrames);
+            }
+        }
+
+        buffer.limit(info.offset + mOutputEnd);
+        buffer.position(info.offset + mOutputOffset);
+        final int written = mTrack.write(buffer, buffer.remaining(), AudioTrack.WRITE_NON_BLOCKING);
+        if (written < 0) {
+            fail();
+            return true;
+        }
+        mOutputOffset += written;
+        mWrittenFrames += written / mFrameSize;
+        return !buffer.hasRemaining();
+    }
+
+    /**
+     * Starts a new timeline segment when the output time does not continue the last one,
+     * e.g. after a seek or when looping wraps around.
+     */
+    @WorkerThread
+    private boolean startSegment(final long mediaTimeUs) {
+        synchronized (mTimelineLock) {
+            final Segment last = mSegments.peekLast();
+            if (last != null && Math.abs(getSegmentTimeUs(last, mWrittenFrames)
+                    - mediaTimeUs) <= DISCONTINUITY_THRESHOLD_US) {
+                return false;
+            }
+            if (last != null && last.startFrame == mWrittenFrames) {
+                mSegments.pollLast();
+            }
+            mSegments.add(new Segment(mWrittenFrames, mediaTimeUs));
+            return true;
+        }
+    }
+
+    @WorkerThread
+    private void readOutputFormat() {
+        final MediaFormat format = mCodec.getOutputFormat();
+        final int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        synchronized (mTimelineLock) {
+            mSampleRate = sampleRate;
+        }
+        mChannelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        mEncoding = getPcmEncoding(format);
+        mFrameSize = mChannelCount * getBytesPerSample(mEncoding);
+    }
+
+    @WorkerThread
+    private boolean createTrack() {
+        readOutputFormat();
+        final int bufferSize = Math.max(
+                AudioTrack.getMinBufferSize(
+                        mSampleRate, getChannelMask(mChannelCount), mEncoding
+                ),
+                (int) ((long) mSampleRate * mBufferMillis / 1000L) * mFrameSize
+        );
+        return buildTrack(AudioTrack.MODE_STREAM, bufferSize);
+    }
+
+    /**
+     * Creates a static track holding the whole clip.
+     */
+    @WorkerThread
+    private boolean createClipTrack() {
+        final ClipCache.Clip clip = mClip;
+        synchronized (mTimelineLock) {
+            mSampleRate = clip.sampleRate;
+            mClipTrack = true;
+        }
+        mChannelCount = clip.channelCount;
+        mEncoding = clip.encoding;
+        mFrameSize = clip.frameSize;
+        if (!buildTrack(AudioTrack.MODE_STATIC, clip.data.capacity())) {
+            return false;
+        }
+
+        final ByteBuffer data = clip.data.duplicate();
+        if (mTrack.write(data, data.remaining(), AudioTrack.WRITE_BLOCKING) < 0) {
+            fail();
+            return false;
+        }
+        repositionClip(0L);
+        return true;
+    }
+
+    @WorkerThread
+    private boolean buildTrack(final int mode, final int bufferSize) {
+        final AudioFormat.Builder audioFormat = new AudioFormat.Builder()
+                .setSampleRate(mSampleRate)
+                .setEncoding(mEncoding);
+        final int channelMask = getChannelMask(mChannelCount);
+        if (channelMask != AudioFormat.CHANNEL_INVALID) {
+            audioFormat.setChannelMask(channelMask);
+        } else {
+            audioFormat.setChannelIndexMask((1 << mChannelCount) - 1);
+        }
+
+        final AudioTrack track;
+        try {
+            track = new AudioTrack.Builder()
+                    .setAudioAttributes(mAudioAttributes)
+                    .setAudioFormat(audioFormat.build())
+                    .setBufferSizeInBytes(bufferSize)
+                    .setTransferMode(mode)
+                    .setPerformanceMode(mLowLatency && mode == AudioTrack.MODE_STREAM
+                            ? AudioTrack.PERFORMANCE_MODE_LOW_LATENCY
+                            : AudioTrack.PERFORMANCE_MODE_NONE)
+                    .build();
+        } catch (RuntimeException e) {
+            fail();
+            return false;
+        }
+        track.setPlaybackPositionUpdateListener(new AudioTrack.OnPlaybackPositionUpdateListener() {
+            @Override
+            public void onMarkerReached(AudioTrack track) {
+                if (track != mTrack) {
+                    return;
+                }
+                if (mOutputEnded) {
+                    onCompleted();
+                } else {
+                    pollTimestamp(0);
+                }
+            }
+
+            @Override
+            public void onPeriodicNotification(AudioTrack track) {
+                // Clip loops wrap in the track, re-anchor the clock about once per loop
+                if (track == mTrack) {
+                    pollTimestamp(0);
+                }
+            }
+        }, mDecodeHandler);
+
+        synchronized (mTimelineLock) {
+            mTrack = track;
+        }
+        if (mPlaying && mode == AudioTrack.MODE_STREAM) {
+            track.play();
+            pollTimestamp(0);
+        }
+        return true;
+    }
+
+    @WorkerThread
+    private void appendToClip(@NonNull final ByteBuffer buffer) {
+        if (buffer.remaining() > mClipBuilder.remaining()) {
+            final long capacity = Math.max(
+                    (long) mClipBuilder.capacity() * 2,
+                    (long) mClipBuilder.position() + buffer.remaining()
+            );
+            if (capacity > mClipCache.getMaxClipBytes()) {
+                abandonClip();
+                return;
+            }
+            final ByteBuffer builder = ByteBuffer.allocateDirect((int) capacity);
+            mClipBuilder.flip();
+            builder.put(mClipBuilder);
+            mClipBuilder = builder;
+        }
+        mClipBuilder.put(buffer);
+    }
+
+    /**
+     * Keeps the decoded clip once the whole source is decoded and plays it from memory.
+     */
+    @WorkerThread
+    private void finishClip() {
+        final ByteBuffer builder = mClipBuilder;
+        if (builder == null) {
+            return;
+        }
+        mClipBuilder = null;
+        if (mFrameSize == 0 || builder.position() < mFrameSize) {
+            abandonClip();
+            return;
+        }
+
+        // Trim the builder to the decoded size
+        builder.flip();
+        final ByteBuffer data = ByteBuffer.allocateDirect(
+                builder.remaining() / mFrameSize * mFrameSize
+        );
+        builder.limit(data.capacity());
+        data.put(builder);
+        data.flip();
+        mClip = new ClipCache.Clip(
+                data.asReadOnlyBuffer(), mSampleRate, mChannelCount, mEncoding, mFrameSize
+        );
+        mClipCache.put(mClipKey, mClip);
+        mOutputPath = OUTPUT_PATH_CLIP;
+        mNoOffloadReason = NO_OFFLOAD_CLIP;
+        PlaybackMetrics.increment(PlaybackMetrics.COUNTER_CLIP_DECODES);
+
+        // The source is no longer read
+        mCodec.release();
+        mCodec = null;
+        mExtractor.release();
+        mExtractor = null;
+        mOutputIndexes.clear();
+        mOutputInfos.clear();
+        if (createClipTrack()) {
+            onOutputQueued();
+        }
+    }
+
+    /**
+     * Falls back to streaming when the clip turns out larger than estimated.
+     */
+    @WorkerThread
+    private void abandonClip() {
+        mFrameSize = 0;
+        seekInternal(0L, MediaPlayer.SEEK_PREVIOUS_SYNC);
+        mSeekPending = false;
+    }
+
+    /**
+     * Moves the static track to {@code frame} and applies the loop state, which the track
+     * only accepts while paused.
+     */
+    @WorkerThread
+    private void repositionClip(final long frame) {
+        final int frameCount = mClip.getFrameCount();
+        final int position = (int) Math.max(0L, Math.min(frame, frameCount - 1L));
+        final int loopStart = (int) Math.min(toFrames(mLoopStartUs), frameCount - 1L);
+        final int loopEnd = mLoopEndUs == Long.MAX_VALUE
+                ? frameCount : (int) Math.min(frameCount, toFrames(mLoopEndUs));
+        boolean looping = mLooping && loopEnd > loopStart && position < loopEnd;
+
+        mTrack.pause();
+        if (!looping || mTrack.setLoopPoints(loopStart, loopEnd, -1) != AudioTrack.SUCCESS) {
+            // Ranges too short for the track play through
+            looping = false;
+            mTrack.setLoopPoints(0, frameCount, 0);
+        }
+        mTrack.setPlaybackHeadPosition(position);
+        mTrack.setPositionNotificationPeriod(looping ? loopEnd - loopStart : 0);
+        synchronized (mTimelineLock) {
+            mIdlePositionUs = toDurationUs(position, mSampleRate);
+        }
+
+        // Completion is the end of the clip heard, unless it loops
+        mOutputEnded = !looping;
+        if (!looping) {
+            mTrack.setNotificationMarkerPosition(frameCount);
+        }
+        if (mPlaying) {
+            mTrack.play();
+            pollTimestamp(0);
+        }
+    }
+
+    @WorkerThread
+    private void updateClipLoop() {
+        if (mClip == null || mTrack == null || mCompleted) {
+            return;
+        }
+        repositionClip(mTrack.getPlaybackHeadPosition() & 0xffffffffL);
+    }
+
+    /**
+     * Creates an offloaded track for the compressed source, sized by its bit rate.
+     */
+    @RequiresApi(Build.VERSION_CODES.Q)
+    @WorkerThread
+    private boolean createOffloadTrack() {
+        final int bitRate = mInputFormat.containsKey(MediaFormat.KEY_BIT_RATE)
+                ? mInputFormat.getInteger(MediaFormat.KEY_BIT_RATE) : DEFAULT_OFFLOAD_BIT_RATE;
+        final AudioTrack track;
+        try {
+            track = new AudioTrack.Builder()
+                    .setAudioAttributes(mAudioAttributes)
+                    .setAudioFormat(mOffloadFormat)
+                    .setBufferSizeInBytes(
+                            (int) ((long) bitRate / 8 * mOffloadBufferMillis / 1000L)
+                    )
+                    .setTransferMode(AudioTrack.MODE_STREAM)
+                    .setOffloadedPlayback(true)
+                    .build();
+            track.setOffloadDelayPadding(mOffloadDelayFrames, mOffloadPaddingFrames);
+        } catch (RuntimeException e) {
+            fail();
+            return false;
+        }
+        track.registerStreamEventCallback(mDecodeHandler::post,
+                new AudioTrack.StreamEventCallback() {
+                    @Override
+                    public void onDataRequest(@NonNull AudioTrack track, int sizeInFrames) {
+                        if (track == mTrack) {
+                            feedOffload();
+                        }
+                    }
+
+                    @Override
+                    public void onPresentationEnded(@NonNull AudioTrack track) {
+                        if (track == mTrack && mOutputEnded) {
+                            onCompleted();
+                        }
+                    }
+                });
+
+        synchronized (mTimelineLock) {
+            mSampleRate = mOffloadFormat.getSampleRate();
+            mTrack = track;
+            mSegments.clear();
+            mSegments.add(new Segment(0L, mIdlePositionUs));
+        }
+        return true;
+    }
+
+    /**
+     * Writes compressed samples until the track is full. The track asks for more once it
+     * has played part of them, so nothing is polled while the CPU may sleep.
+     */
+    @WorkerThread
+    private void feedOffload() {
+        while (mTrack != null && mOffloadSample != null) {
+            if (!mOffloadSample.hasRemaining()) {
+                if (mOutputEnded) {
+                    return;
+                }
+                mOffloadSample.clear();
+                final int size = mExtractor.readSampleData(mOffloadSample, 0);
+                if (size < 0) {
+                    mOffloadSample.limit(0);
+                    mOutputEnded = true;
+                    onOutputQueued();
+                    if (mPlaying) {
+                        mTrack.stop();
+                    }
+                    return;
+                }
+                mOffloadSample.position(0);
+                mOffloadSample.limit(size);
+                mExtractor.advance();
+            }
+
+            final int written = mTrack.write(
+                    mOffloadSample, mOffloadSample.remaining(), AudioTrack.WRITE_NON_BLOCKING
+            );
+            if (written < 0) {
+                fail();
+                return;
+            }
+            if (mOffloadSample.hasRemaining()) {
+                onOutputQueued();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves an offloaded source over to the codec once looping is turned on, continuing
+     * from the played position, or from the loop start after completion.
+     */
+    @WorkerThread
+    private void leaveOffload() {
+        if (!mLooping || mOffloadFormat == null) {
+            return;
+        }
+
+        final boolean prepared = mTrack != null;
+        final long positionUs;
+        synchronized (mTimelineLock) {
+            positionUs = mTrack == null ? mIdlePositionUs : mCompleted ? mLoopStartUs
+                    : getMediaTimeUs(mTrack.getPlaybackHeadPosition() & 0xffffffffL);
+            if (mTrack != null) {
+                mTrack.release();
+                mTrack = null;
+            }
+            mSegments.clear();
+            mIdlePositionUs = positionUs;
+        }
+        mOffloadFormat = null;
+        mOffloadSample = null;
+        mOutputEnded = false;
+        mOutputPath = OUTPUT_PATH_CODEC;
+        mNoOffloadReason = NO_OFFLOAD_LOOPING;
+        mInputFormat.setInteger(KEY_ENCODER_DELAY, 0);
+        mInputFormat.setInteger(KEY_ENCODER_PADDING, 0);
+
+        // Not prepared yet, preparing creates the codec
+        if (!prepared || !createCodec()) {
+            return;
+        }
+        seekInternal(positionUs, MediaPlayer.SEEK_CLOSEST);
+        mSeekPending = false;
+        if (mPlaying) {
+            mWakeLock.acquire();
+        }
+    }
+
+    @WorkerThread
+    private void seekOffload(final long positionUs, final int mode) {
+        if (mExtractor == null || mTrack == null) {
+            return;
+        }
+
+        // Compressed audio restarts at a sync sample, which closest seeks settle for
+        mExtractor.seekTo(positionUs + mDelayUs, mode == MediaPlayer.SEEK_NEXT_SYNC
+                ? MediaExtractor.SEEK_TO_NEXT_SYNC : MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        final long startUs = Math.max(0L, mExtractor.getSampleTime() - mDelayUs);
+        mSeekPending = true;
+        mCompleted = false;
+        mOutputEnded = false;
+        mOffloadSample.limit(0);
+        synchronized (mTimelineLock) {
+            mTrack.pause();
+            mTrack.flush();
+            if (mPlaying) {
+                mTrack.play();
+            }
+            mSegments.clear();
+            mSegments.add(new Segment(0L, startUs));
+            mIdlePositionUs = startUs;
+        }
+        feedOffload();
+        if (mPlaying) {
+            pollTimestamp(0);
+        }
+    }
+
+    /**
+     * Drops the track when the decoder changes its output format, a new one is created
+     * for the next output.
+     */
+    @WorkerThread
+    private void onOutputFormatChanged(@NonNull final MediaFormat format) {
+        if (mClipBuilder != null) {
+            // A clip holds a single format, it is read again for the next output
+            if (mClipBuilder.position() == 0) {
+                mFrameSize = 0;
+            } else if (format.getInteger(MediaFormat.KEY_SAMPLE_RATE) != mSampleRate
+                    || format.getInteger(MediaFormat.KEY_CHANNEL_COUNT) != mChannelCount) {
+                abandonClip();
+            }
+            return;
+        }
+        synchronized (mTimelineLock) {
+            if (mTrack == null
+                    || (format.getInteger(MediaFormat.KEY_SAMPLE_RATE) == mSampleRate
+                    && format.getInteger(MediaFormat.KEY_CHANNEL_COUNT) == mChannelCount)) {
+                return;
+            }
+            final Segment last = mSegments.peekLast();
+            final long positionUs = last == null
+                    ? mIdlePositionUs : getSegmentTimeUs(last, mWrittenFrames);
+            mTrack.release();
+            mTrack = null;
+            mWrittenFrames = 0L;
+            mSegments.clear();
+            mSegments.add(new Segment(0L, positionUs));
+        }
+    }
+
+    @WorkerThread
+    private void onOutputQueued() {
+        // A clip is prepared once it is decoded in full
+        if (mClipBuilder != null) {
+            return;
+        }
+        if (!mPrepared) {
+            mPrepared = true;
+            dispatch(listener -> listener.onPrepared(this));
+        }
+        if (mSeekPending) {
+            mSeekPending = false;
+            dispatch(listener -> listener.onSeekComplete(this));
+        }
+    }
+
+    @WorkerThread
+    private void onOutputEnded() {
+        if (mClipBuilder != null) {
+            // Not from within the codec callback, which the codec is released from
+            mDecodeHandler.post(this::finishClip);
+            return;
+        }
+        onOutputQueued();
+        if (mLooping) {
+            // Looping was turned on after the input had already ended
+            seekInternal(mLoopStartUs, MediaPlayer.SEEK_CLOSEST);
+            mSeekPending = false;
+            return;
+        }
+        mOutputEnded = true;
+        if (mWrittenFrames == 0L || mTrack == null) {
+            onCompleted();
+        } else {
+            mTrack.setNotificationMarkerPosition((int) mWrittenFrames);
+        }
+    }
+
+    @WorkerThread
+    private void onCompleted() {
+        if (mCompleted) {
+            return;
+        }
+
+        mCompleted = true;
+        mPlaying = false;
+        if (mTrack != null) {
+            mTrack.pause();
+        }
+        mWakeLock.release();
+
+        // Hand off to the next engine right away, before the callback gets there
+        final PlaybackEngine next = mNextEngine;
+        if (next != null) {
+            next.start();
+        }
+        dispatch(listener -> listener.onCompletion(this));
+    }
+
+    /**
+     * Reports the first timestamp of the track after it starts, which is when the
+     * position it maps to becomes exact.
+     */
+    @WorkerThread
+    private void pollTimestamp(final int attempt) {
+        mTimestampPolls = attempt;
+        if (!mPlaying || attempt >= TIMESTAMP_POLL_COUNT) {
+            return;
+        }
+
+        final long mediaTimeUs;
+        synchronized (mTimelineLock) {
+            if (!getTimestamp() || mTimestamp.framePosition <= 0L) {
+                mediaTimeUs = -1L;
+            } else {
+                mediaTimeUs = getMediaTimeUs(mTimestamp.framePosition);
+            }
+        }
+        if (mediaTimeUs < 0L) {
+            final int generation = mGeneration;
+            mDecodeHandler.postDelayed(() -> {
+                if (generation == mGeneration && mTimestampPolls == attempt) {
+                    pollTimestamp(attempt + 1);
+                }
+            }, TIMESTAMP_POLL_MILLIS);
+            return;
+        }
+
+        final long nanoTime = mTimestamp.nanoTime;
+        dispatch(listener -> listener.onMediaTimeDiscontinuity(
+                this, mediaTimeUs, nanoTime, mPlaying ? 1f : 0f
+        ));
+    }
+
+    @WorkerThread
+    private void fail() {
+        mPlaying = false;
+        mWakeLock.release();
+        dispatch(listener -> listener.onError(this));
+    }
+
+    /**
+     * Delivers an event on the callback thread unless the engine was reset meanwhile.
+     */
+    @AnyThread
+    private void dispatch(@NonNull final Consumer<Listener> event) {
+        final int generation = mGeneration;
+        mCallbackHandler.post(() -> {
+            if (generation == mGeneration && mListener != null) {
+                event.accept(mListener);
+            }
+        });
+    }
+
+    private void runOnDecodeThread(@NonNull final Runnable runnable) {
+        final CountDownLatch latch = new CountDownLatch(1);
+        if (!mDecodeHandler.post(() -> {
+            try {
+                runnable.run();
+            } finally {
+                latch.countDown();
+            }
+        })) {
+            return;
+        }
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Maps a frame position of the track to media time. Segments already played past are
+     * dropped. Must hold {@link #mTimelineLock}.
+     */
+    private long getMediaTimeUs(final long framePosition) {
+        if (mClipTrack) {
+            return toDurationUs(framePosition, mSampleRate);
+        }
+        while (mSegments.size() > 1) {
+            final Segment first = mSegments.poll();
+            final Segment second = mSegments.peek();
+            if (second.startFrame > framePosition) {
+                mSegments.addFirst(first);
+                break;
+            }
+        }
+        final Segment segment = mSegments.peek();
+        return segment == null ? mIdlePositionUs : getSegmentTimeUs(segment, framePosition);
+    }
+
+    /**
+     * Reads the latest timestamp of the track into {@link #mTimestamp}. Must hold
+     * {@link #mTimelineLock}.
+     */
+    private boolean getTimestamp() {
+        if (mTrack == null) {
+            return false;
+        }
+        if (!mClipTrack) {
+            return mTrack.getTimestamp(mTimestamp);
+        }
+
+        // The head of a static track is the frame within the clip, wrapped by its loop
+        mTimestamp.framePosition = mTrack.getPlaybackHeadPosition() & 0xffffffffL;
+        mTimestamp.nanoTime = System.nanoTime();
+        return true;
+    }
+
+    private long getSegmentTimeUs(@NonNull final Segment segment, final long framePosition) {
+        return segment.mediaTimeUs + (framePosition - segment.startFrame)
+                * TimeUnit.SECONDS.toMicros(1L) / Math.max(1, mSampleRate);
+    }
+
+    private long toFrames(final long durationUs) {
+        return durationUs * mSampleRate / TimeUnit.SECONDS.toMicros(1L);
+    }
+
+    private static long toDurationUs(final long frames, final int sampleRate) {
+        return sampleRate <= 0 ? 0L : frames * TimeUnit.SECONDS.toMicros(1L) / sampleRate;
+    }
+
+    private static int getInteger(@NonNull final MediaFormat format, @NonNull final String key) {
+        return format.containsKey(key) ? format.getInteger(key) : 0;
+    }
+
+    /**
+     * Returns the compressed format to offload {@code format} with, or {@code null} when the
+     * device does not offload it.
+     */
+    @RequiresApi(Build.VERSION_CODES.Q)
+    @Nullable
+    private AudioFormat getOffloadFormat(@NonNull final MediaFormat format) {
+        final String mime = Objects.requireNonNull(format.getString(MediaFormat.KEY_MIME));
+        final int encoding;
+        if (MediaFormat.MIMETYPE_AUDIO_MPEG.equals(mime)) {
+            encoding = AudioFormat.ENCODING_MP3;
+        } else if (MediaFormat.MIMETYPE_AUDIO_AAC.equals(mime)) {
+            switch (getInteger(format, MediaFormat.KEY_AAC_PROFILE)) {
+                case MediaCodecInfo.CodecProfileLevel.AACObjectHE:
+                    encoding = AudioFormat.ENCODING_AAC_HE_V1;
+                    break;
+                case MediaCodecInfo.CodecProfileLevel.AACObjectHE_PS:
+                    encoding = AudioFormat.ENCODING_AAC_HE_V2;
+                    break;
+                default:
+                    encoding = AudioFormat.ENCODING_AAC_LC;
+                    break;
+            }
+        } else {
+            return null;
+        }
+
+        final int channelMask = getChannelMask(format.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+        if (channelMask == AudioFormat.CHANNEL_INVALID) {
+            return null;
+        }
+        final AudioFormat audioFormat = new AudioFormat.Builder()
+                .setSampleRate(format.getInteger(MediaFormat.KEY_SAMPLE_RATE))
+                .setChannelMask(channelMask)
+                .setEncoding(encoding)
+                .build();
+        return AudioManager.isOffloadedPlaybackSupported(audioFormat, mAudioAttributes)
+                ? audioFormat : null;
+    }
+
+    private static int getChannelMask(final int channelCount) {
+        switch (channelCount) {
+            case 1:
+                return AudioFormat.CHANNEL_OUT_MONO;
+            case 2:
+                return AudioFormat.CHANNEL_OUT_STEREO;
+            case 4:
+                return AudioFormat.CHANNEL_OUT_QUAD;
+            case 6:
+                return AudioFormat.CHANNEL_OUT_5POINT1;
+            case 8:
+                return AudioFormat.CHANNEL_OUT_7POINT1_SURROUND;
+            default:
+                return AudioFormat.CHANNEL_INVALID;
+        }
+    }
+
+    private static int getPcmEncoding(@NonNull final MediaFormat format) {
+        return format.containsKey(MediaFormat.KEY_PCM_ENCODING)
+                ? format.getInteger(MediaFormat.KEY_PCM_ENCODING)
+                : AudioFormat.ENCODING_PCM_16BIT;
+    }
+
+    private static int getBytesPerSample(final int encoding) {
+        switch (encoding) {
+            case AudioFormat.ENCODING_PCM_8BIT:
+                return 1;
+            case AudioFormat.ENCODING_PCM_FLOAT:
+                return 4;
+            default:
+                return 2;
+        }
+    }
+
+    /**
+     * Frames written from {@code startFrame} on continue from {@code mediaTimeUs}.
+     */
+    private static final class Segment {
+        final long startFrame;
+
+        final long mediaTimeUs;
+
+        Segment(long startFrame, long mediaTimeUs) {
+            this.startFrame = startFrame;
+            this.mediaTimeUs = mediaTimeUs;
+        }
+    }
+
+    private final class CodecCallback extends MediaCodec.Callback {
+        private final MediaCodec mOwner;
+
+        CodecCallback(@NonNull final MediaCodec owner) {
+            mOwner = owner;
+        }
+
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            if (mOwner != mCodec) {
+                return;
+            }
+            try {
+                queueInput(codec, index);
+            } catch (RuntimeException e) {
+                fail();
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index,
+                                            @NonNull MediaCodec.BufferInfo info) {
+            if (mOwner != mCodec) {
+                return;
+            }
+            mOutputIndexes.add(index);
+            mOutputInfos.add(info);
+            if (mOutputIndexes.size() == 1) {
+                try {
+                    drainOutput();
+                } catch (RuntimeException e) {
+                    fail();
+                }
+            }
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            if (mOwner == mCodec) {
+                fail();
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec,
+                                          @NonNull MediaFormat format) {
+            if (mOwner == mCodec) {
+                CodecPlaybackEngine.this.onOutputFormatChanged(format);
+            }
+        }
+    }
+}
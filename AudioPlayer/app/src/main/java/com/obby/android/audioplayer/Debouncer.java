@@ -0,0 +1,36 @@
+package com.obby.android.audioplayer;
+
+import android.os.Handler;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+
+/**
+ * Runs an action once a burst of requests settles, so a burst of any length costs a single
+ * run. A burst ends after a quiet window with no requests.
+ */
+final class Debouncer {
+    private final Handler mHandler;
+
+    private final long mWindowMillis;
+
+    private final Runnable mAction;
+
+    Debouncer(@NonNull final Handler handler, final long windowMillis,
+              @NonNull final Runnable action) {
+        mHandler = handler;
+        mWindowMillis = windowMillis;
+        mAction = action;
+    }
+
+    @MainThread
+    void request() {
+        mHandler.removeCallbacks(mAction);
+        mHandler.postDelayed(mAction, mWindowMillis);
+    }
+
+    @MainThread
+    void cancel() {
+        mHandler.removeCallbacks(mAction);
+    }
+}
@@ -0,0 +1,67 @@
+package com.obby.android.audioplayer;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Reusable "m:ss" text for a duration. Formatting writes into a fixed char buffer and
+ * only happens when the displayed second changes, so updating it every frame does not
+ * allocate.
+ */
+final class DurationText {
+    private static final int MAX_LENGTH = 24;
+
+    private final char[] mChars = new char[MAX_LENGTH];
+
+    private int mLength;
+
+    private long mSeconds = -1L;
+
+    /**
+     * Returns whether the text changed.
+     */
+    boolean set(final long durationMillis) {
+        final long seconds = Math.max(0L, durationMillis) / 1000L;
+        if (seconds == mSeconds) {
+            return false;
+        }
+        mSeconds = seconds;
+        mLength = format(seconds, mChars);
+        return true;
+    }
+
+    @NonNull
+    char[] getChars() {
+        return mChars;
+    }
+
+    int length() {
+        return mLength;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return new String(mChars, 0, mLength);
+    }
+
+    static int format(final long seconds, @NonNull final char[] out) {
+        final long minutes = seconds / 60L;
+        final int secondsOfMinute = (int) (seconds % 60L);
+
+        // Write minutes backwards after counting digits
+        int digits = 1;
+        for (long value = minutes / 10L; value > 0L; value /= 10L) {
+            digits++;
+        }
+        long value = minutes;
+        for (int i = digits - 1; i >= 0; i--) {
+            out[i] = (char) ('0' + (value % 10L));
+            value /= 10L;
+        }
+
+        out[digits] = ':';
+        out[digits + 1] = (char) ('0' + secondsOfMinute / 10);
+        out[digits + 2] = (char) ('0' + secondsOfMinute % 10);
+        return digits + 3;
+    }
+}
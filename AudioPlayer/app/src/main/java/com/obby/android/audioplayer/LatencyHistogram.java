@@ -0,0 +1,62 @@
+package com.obby.android.audioplayer;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Ring of the most recent latency samples. Recording is lock-free and allocation-free,
+ * percentiles are computed from a sorted copy only when dumped.
+ */
+final class LatencyHistogram {
+    private final AtomicLongArray mSamples;
+
+    private final AtomicLong mCount = new AtomicLong();
+
+    LatencyHistogram(final int capacity) {
+        mSamples = new AtomicLongArray(capacity);
+    }
+
+    @AnyThread
+    void record(final long nanos) {
+        final long index = mCount.getAndIncrement();
+        mSamples.set((int) (index % mSamples.length()), nanos);
+    }
+
+    /**
+     * Prints one line with the sample count and p50/p95/p99 in milliseconds.
+     */
+    void dump(@NonNull final PrintWriter writer, @NonNull final String name) {
+        final int size = (int) Math.min(mCount.get(), mSamples.length());
+        if (size == 0) {
+            writer.printf(Locale.US, "  %-16s n=0%n", name);
+            return;
+        }
+
+        final long[] samples = new long[size];
+        for (int i = 0; i < size; i++) {
+            samples[i] = mSamples.get(i);
+        }
+        Arrays.sort(samples);
+        writer.printf(
+                Locale.US, "  %-16s n=%-4d p50=%.1fms p95=%.1fms p99=%.1fms%n", name, size,
+                toMillis(percentile(samples, 50)), toMillis(percentile(samples, 95)),
+                toMillis(percentile(samples, 99))
+        );
+    }
+
+    private static long percentile(@NonNull final long[] sorted, final int percentile) {
+        final int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static double toMillis(final long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1L);
+    }
+}
@@ -1,6 +1,7 @@
 package com.obby.android.audioplayer;
 
 import android.Manifest;
+import android.content.ComponentName;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -19,6 +20,11 @@ import androidx.core.content.ContextCompat;
 import androidx.preference.PreferenceManager;
 
 public class MainActivity extends AppCompatActivity {
+    /**
+     * Alias of this activity whose shares are appended to the queue instead of replacing it.
+     */
+    private static final String APPEND_ACTIVITY = ".AppendActivity";
+
     private SwitchCompat mFloatingWindowSwitchView;
 
     private SharedPreferences mSharedPreferences;
@@ -28,7 +34,7 @@ public class MainActivity extends AppCompatActivity {
     private final ActivityResultLauncher<String> mReadExternalStoragePermissionRequestLauncher =
             registerForActivityResult(new ActivityResultContracts.RequestPermission(), result -> {
                 if (Boolean.TRUE.equals(result)) {
-                    startAudioPlayerService();
+                    startAudioPlayerService(0L);
                     finish();
                 } else if (ActivityCompat.shouldShowRequestPermissionRationale(
                         this, Manifest.permission.READ_EXTERNAL_STORAGE
@@ -45,7 +51,7 @@ public class MainActivity extends AppCompatActivity {
                         if (ContextCompat.checkSelfPermission(
                                 this, Manifest.permission.READ_EXTERNAL_STORAGE
                         ) == PackageManager.PERMISSION_GRANTED) {
-                            startAudioPlayerService();
+                            startAudioPlayerService(0L);
                         }
                         finish();
                     }
@@ -61,14 +67,20 @@ public class MainActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        final long openTime = StartupTrace.begin(StartupTrace.PHASE_ACTIVITY);
         final Intent intent = getIntent();
-        if (Intent.ACTION_VIEW.equals(intent.getAction())) {
+        if (Intent.ACTION_VIEW.equals(intent.getAction())
+                || Intent.ACTION_SEND.equals(intent.getAction())
+                || Intent.ACTION_SEND_MULTIPLE.equals(intent.getAction())) {
             final String type = intent.getType();
             if (type != null && (type.startsWith("audio/") || "application/ogg".equals(type))) {
+                // Only opens that skip the permission flow are comparable
+                long measuredOpenTime = 0L;
                 if (ContextCompat.checkSelfPermission(
                         this, Manifest.permission.READ_EXTERNAL_STORAGE
                 ) == PackageManager.PERMISSION_GRANTED) {
-                    startAudioPlayerService();
+                    measuredOpenTime = openTime;
+                    startAudioPlayerService(openTime);
                     finish();
                 } else if (ActivityCompat.shouldShowRequestPermissionRationale(
                         this, Manifest.permission.READ_EXTERNAL_STORAGE
@@ -79,9 +91,11 @@ public class MainActivity extends AppCompatActivity {
                             Manifest.permission.READ_EXTERNAL_STORAGE
                     );
                 }
+                StartupTrace.end(StartupTrace.PHASE_ACTIVITY, measuredOpenTime);
                 return;
             }
         }
+        StartupTrace.end(StartupTrace.PHASE_ACTIVITY, 0L);
 
         setContentView(R.layout.activity_main);
 
@@ -102,6 +116,15 @@ public class MainActivity extends AppCompatActivity {
                 mSharedPreferencesEditor.putBoolean("floating_window", isChecked).apply();
             }
         });
+
+        // Takes effect the next time the player starts
+        final SwitchCompat codecEngineSwitchView = findViewById(R.id.codec_engine);
+        codecEngineSwitchView.setChecked(mSharedPreferences.getBoolean(
+                "codec_engine", AudioPlayerService.DEFAULT_CODEC_ENGINE
+        ));
+        codecEngineSwitchView.setOnCheckedChangeListener((buttonView, isChecked) ->
+                mSharedPreferencesEditor.putBoolean("codec_engine", isChecked).apply()
+        );
     }
 
     @Override
@@ -127,9 +150,32 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    private void startAudioPlayerService() {
+    private void startAudioPlayerService(final long openTimeNanos) {
+        final Intent sourceIntent = getIntent();
+        final ComponentName component = sourceIntent.getComponent();
+        final boolean append = component != null
+                && component.getClassName().equals(getPackageName() + APPEND_ACTIVITY);
+
+        // Keep access to the sources across restarts where the sender allows it
+        if ((sourceIntent.getFlags() & Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION) != 0) {
+            for (final Uri uri : AudioPlayerService.getUris(sourceIntent)) {
+                try {
+                    getContentResolver().takePersistableUriPermission(
+                            uri, Intent.FLAG_GRANT_READ_URI_PERMISSION
+                    );
+                } catch (SecurityException ignored) {
+                    // Not persistable after all, a restored queue drops the entry
+                }
+            }
+        }
+
         final Intent intent = new Intent(this, AudioPlayerService.class)
-                .setData(getIntent().getData());
+                .setAction(append ? AudioPlayerService.ACTION_APPEND : null)
+                .setData(sourceIntent.getData())
+                .addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION)
+                .putExtra(AudioPlayerService.EXTRA_OPEN_TIME, openTimeNanos)
+                .putExtra(AudioPlayerService.EXTRA_LAUNCH_TIME, StartupTrace.now());
+        intent.setClipData(sourceIntent.getClipData());
         ContextCompat.startForegroundService(this, intent);
     }
 
@@ -0,0 +1,171 @@
+package com.obby.android.audioplayer;
+
+import android.content.Context;
+import android.media.MediaPlayer;
+import android.media.MediaTimestamp;
+import android.os.PowerManager;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+
+/**
+ * Playback engine on top of {@link MediaPlayer}. Next engines of the same kind are chained
+ * with {@link MediaPlayer#setNextMediaPlayer}, so the framework hands off gaplessly.
+ */
+final class MediaPlayerEngine implements PlaybackEngine {
+    private final MediaPlayer mMediaPlayer = new MediaPlayer();
+
+    private final String mNoOffloadReason;
+
+    private Listener mListener;
+
+    /**
+     * @param noOffloadReason why MediaPlayer plays rather than an engine that offloads
+     */
+    MediaPlayerEngine(@NonNull final Context context, @NonNull final String noOffloadReason) {
+        mNoOffloadReason = noOffloadReason;
+        mMediaPlayer.setWakeMode(context, PowerManager.PARTIAL_WAKE_LOCK);
+        mMediaPlayer.setOnPreparedListener(mp -> {
+            if (mListener != null) {
+                mListener.onPrepared(this);
+            }
+        });
+        mMediaPlayer.setOnCompletionListener(mp -> {
+            if (mListener != null) {
+                mListener.onCompletion(this);
+            }
+        });
+        mMediaPlayer.setOnSeekCompleteListener(mp -> {
+            if (mListener != null) {
+                mListener.onSeekComplete(this);
+            }
+        });
+        mMediaPlayer.setOnMediaTimeDiscontinuityListener((mp, mts) -> {
+            if (mListener != null) {
+                mListener.onMediaTimeDiscontinuity(
+                        this, mts.getAnchorMediaTimeUs(),
+                        PlaybackClock.getAnchorSystemNanoTime(mts), mts.getMediaClockRate()
+                );
+            }
+        });
+        mMediaPlayer.setOnErrorListener((mp, what, extra) -> {
+            if (mListener != null) {
+                mListener.onError(this);
+            }
+            return true;
+        });
+    }
+
+    @Override
+    public void setListener(@Nullable final Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void setDataSource(@NonNull final SourceResolver.Source source) throws IOException {
+        source.setDataSource(mMediaPlayer);
+    }
+
+    @Override
+    public void prepareAsync() {
+        mMediaPlayer.prepareAsync();
+    }
+
+    @Override
+    public void start() {
+        mMediaPlayer.start();
+    }
+
+    @Override
+    public void pause() {
+        mMediaPlayer.pause();
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return mMediaPlayer.isPlaying();
+    }
+
+    @Override
+    public void setLooping(final boolean looping) {
+        mMediaPlayer.setLooping(looping);
+    }
+
+    @Override
+    public boolean isLooping() {
+        return mMediaPlayer.isLooping();
+    }
+
+    /**
+     * Not supported, {@link MediaPlayer} always loops the whole source.
+     */
+    @Override
+    public void setLoopRange(final long startMs, final long endMs) {
+    }
+
+    @Override
+    public boolean supportsSeamlessLooping() {
+        return false;
+    }
+
+    @Override
+    public void seekTo(final long positionMs, final int mode) {
+        mMediaPlayer.seekTo(positionMs, mode);
+    }
+
+    @Override
+    public long getDuration() {
+        return mMediaPlayer.getDuration();
+    }
+
+    @Override
+    public long getCurrentPosition() {
+        return mMediaPlayer.getCurrentPosition();
+    }
+
+    @Override
+    public boolean anchor(@NonNull final PlaybackClock clock) {
+        final MediaTimestamp timestamp = mMediaPlayer.getTimestamp();
+        if (timestamp == null) {
+            return false;
+        }
+        clock.anchor(timestamp);
+        return true;
+    }
+
+    @Override
+    public void setNextEngine(@Nullable final PlaybackEngine next) {
+        mMediaPlayer.setNextMediaPlayer(
+                next instanceof MediaPlayerEngine ? ((MediaPlayerEngine) next).mMediaPlayer : null
+        );
+    }
+
+    @NonNull
+    @Override
+    public String getOutputPath() {
+        return "mediaPlayer";
+    }
+
+    @Override
+    public boolean holdsWakeLock() {
+        return true;
+    }
+
+    @NonNull
+    @Override
+    public String getNoOffloadReason() {
+        return mNoOffloadReason;
+    }
+
+    @Override
+    public void reset() {
+        mMediaPlayer.reset();
+    }
+
+    @Override
+    public void release() {
+        mMediaPlayer.release();
+    }
+}
@@ -0,0 +1,166 @@
+package com.obby.android.audioplayer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Two level cache of extracted metadata: a byte-bounded in-memory LRU in front of
+ * thumbnail files in the cache directory. Keys combine the uri with its last modified
+ * time, so edited files are extracted again.
+ */
+final class MetadataCache {
+    private static final int DISK_CACHE_VERSION = 2;
+
+    private static final int DISK_CACHE_MAX_FILES = 256;
+
+    private final File mDirectory;
+
+    private final LruCache<String, MetadataLoader.Metadata> mMemoryCache;
+
+    MetadataCache(@NonNull final File directory, final int maxMemoryBytes) {
+        mDirectory = directory;
+        mMemoryCache = new LruCache<String, MetadataLoader.Metadata>(maxMemoryBytes) {
+            @Override
+            protected int sizeOf(String key, MetadataLoader.Metadata value) {
+                return 1 + (value.artwork == null ? 0 : value.artwork.getAllocationByteCount())
+                        + (value.artworkData == null ? 0 : value.artworkData.length);
+            }
+        };
+    }
+
+    @WorkerThread
+    @Nullable
+    MetadataLoader.Metadata get(@NonNull final String key) {
+        final MetadataLoader.Metadata metadata = mMemoryCache.get(key);
+        if (metadata != null) {
+            return metadata;
+        }
+
+        final MetadataLoader.Metadata diskMetadata = readFromDisk(key);
+        if (diskMetadata != null) {
+            mMemoryCache.put(key, diskMetadata);
+        }
+        return diskMetadata;
+    }
+
+    @WorkerThread
+    void put(@NonNull final String key, @NonNull final MetadataLoader.Metadata metadata) {
+        mMemoryCache.put(key, metadata);
+        writeToDisk(key, metadata);
+    }
+
+    void clearMemory() {
+        mMemoryCache.evictAll();
+    }
+
+    @WorkerThread
+    @Nullable
+    private MetadataLoader.Metadata readFromDisk(@NonNull final String key) {
+        final File file = getFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try (final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != DISK_CACHE_VERSION || !key.equals(in.readUTF())) {
+                return null;
+            }
+            final String title = in.readUTF();
+            final String subtitle = in.readBoolean() ? in.readUTF() : null;
+            Bitmap artwork = null;
+            byte[] artworkData = null;
+            final int length = in.readInt();
+            if (length > 0) {
+                artworkData = new byte[length];
+                in.readFully(artworkData);
+                artwork = BitmapFactory.decodeByteArray(artworkData, 0, length);
+            }
+
+            // Keep recently used entries from being trimmed
+            //noinspection ResultOfMethodCallIgnored
+            file.setLastModified(System.currentTimeMillis());
+            return new MetadataLoader.Metadata(
+                    title, subtitle, artwork, artwork == null ? null : artworkData, null
+            );
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        }
+    }
+
+    @WorkerThread
+    private void writeToDisk(@NonNull final String key,
+                             @NonNull final MetadataLoader.Metadata metadata) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            return;
+        }
+
+        final byte[] raw = metadata.artworkData;
+        final File file = getFile(key);
+        final File tempFile = new File(mDirectory, file.getName() + ".tmp");
+        try (final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(DISK_CACHE_VERSION);
+            out.writeUTF(key);
+            out.writeUTF(metadata.title);
+            out.writeBoolean(metadata.subtitle != null);
+            if (metadata.subtitle != null) {
+                out.writeUTF(metadata.subtitle);
+            }
+            out.writeInt(raw == null ? 0 : raw.length);
+            if (raw != null) {
+                out.write(raw);
+            }
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            return;
+        }
+        if (!tempFile.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+        }
+
+        trimDirectory(mDirectory, DISK_CACHE_MAX_FILES);
+    }
+
+    /**
+     * Deletes the least recently modified files of {@code directory} beyond {@code maxFiles}.
+     */
+    @WorkerThread
+    static void trimDirectory(@NonNull final File directory, final int maxFiles) {
+        final File[] files = directory.listFiles();
+        if (files == null || files.length <= maxFiles) {
+            return;
+        }
+
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (int i = 0; i < files.length - maxFiles; i++) {
+            //noinspection ResultOfMethodCallIgnored
+            files[i].delete();
+        }
+    }
+
+    @NonNull
+    private File getFile(@NonNull final String key) {
+        return new File(mDirectory, Integer.toHexString(key.hashCode()) + "_" + key.length());
+    }
+}
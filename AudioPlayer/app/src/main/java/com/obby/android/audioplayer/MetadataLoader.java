@@ -0,0 +1,267 @@
+package com.obby.android.audioplayer;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extracts title, artist and embedded artwork on a background thread.
+ * Only the result of the most recent {@link #load} call is ever delivered.
+ */
+final class MetadataLoader {
+    private static final int MEMORY_CACHE_MAX_BYTES = 8 * 1024 * 1024;
+
+    private static final int BITMAP_POOL_MAX_BYTES = 4 * 1024 * 1024;
+
+    private static final int NO_GENERATION = -1;
+
+    private final ArtworkStore mArtworkStore;
+
+    private final SourceResolver mSourceResolver;
+
+    private final ArtworkDecoder mArtworkDecoder;
+
+    private final BitmapPool mBitmapPool = new BitmapPool(BITMAP_POOL_MAX_BYTES);
+
+    private final MetadataCache mMetadataCache;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final ExecutorService mExecutorService = Executors.newSingleThreadExecutor();
+
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    private Future<?> mLoadTask;
+
+    private final ArrayList<Future<?>> mPrefetchTasks = new ArrayList<>();
+
+    MetadataLoader(@NonNull Context context, @NonNull final SourceResolver sourceResolver,
+                   final int artworkSize) {
+        mArtworkStore = new ArtworkStore(context);
+        mSourceResolver = sourceResolver;
+        mArtworkDecoder = new ArtworkDecoder(artworkSize, mBitmapPool);
+        mMetadataCache = new MetadataCache(
+                new File(context.getCacheDir(), "metadata"), MEMORY_CACHE_MAX_BYTES
+        );
+    }
+
+    @MainThread
+    void load(@NonNull final Uri uri, @NonNull final Callback callback) {
+        cancel();
+
+        final int generation = mGeneration.get();
+        mLoadTask = mExecutorService.submit(() -> {
+            final long startTime = StartupTrace.begin(StartupTrace.PHASE_METADATA);
+            final Metadata metadata = extractMetadata(uri, generation, callback);
+            StartupTrace.end(StartupTrace.PHASE_METADATA, metadata == null ? 0L : startTime);
+            if (metadata != null) {
+                deliver(uri, metadata, generation, callback);
+            }
+        });
+    }
+
+    /**
+     * Extracts metadata of an upcoming source into the cache. Unlike {@link #load} it is
+     * neither delivered nor superseded by later loads, only by {@link #cancelPrefetches}.
+     */
+    @MainThread
+    void prefetch(@NonNull final Uri uri) {
+        mPrefetchTasks.removeIf(Future::isDone);
+        mPrefetchTasks.add(
+                mExecutorService.submit(() -> extractMetadata(uri, NO_GENERATION, null))
+        );
+    }
+
+    /**
+     * Drops the prefetches not done yet, e.g. once the queue they were made for is replaced,
+     * so they do not hold up the next load.
+     */
+    @MainThread
+    void cancelPrefetches() {
+        for (final Future<?> task : mPrefetchTasks) {
+            task.cancel(true);
+        }
+        mPrefetchTasks.clear();
+    }
+
+    @MainThread
+    void cancel() {
+        mGeneration.incrementAndGet();
+        if (mLoadTask != null) {
+            mLoadTask.cancel(true);
+            mLoadTask = null;
+        }
+    }
+
+    /**
+     * Drops the metadata and bitmaps held in memory. Later loads are served from the disk
+     * cache.
+     */
+    @MainThread
+    void trimMemory() {
+        mMetadataCache.clearMemory();
+        mBitmapPool.clear();
+    }
+
+    @MainThread
+    void shutdown() {
+        cancel();
+        cancelPrefetches();
+        mExecutorService.shutdownNow();
+        mMetadataCache.clearMemory();
+    }
+
+    @WorkerThread
+    @Nullable
+    private Metadata extractMetadata(@NonNull final Uri uri, final int generation,
+                                     @Nullable final Callback placeholderCallback) {
+        final SourceResolver.Source source = mSourceResolver.resolve(uri);
+        try {
+            return extractMetadata(source, generation, placeholderCallback);
+        } finally {
+            mSourceResolver.release(source);
+        }
+    }
+
+    @WorkerThread
+    @Nullable
+    private Metadata extractMetadata(@NonNull final SourceResolver.Source source,
+                                     final int generation,
+                                     @Nullable final Callback placeholderCallback) {
+        if (isStale(generation)) {
+            return null;
+        }
+
+        // Serve from cache when the source has not changed
+        final String cacheKey = source.getCacheKey();
+        if (cacheKey != null) {
+            final Metadata metadata = mMetadataCache.get(cacheKey);
+            if (metadata != null) {
+                return isStale(generation) ? null : shareArtwork(metadata);
+            }
+        }
+
+        // Show the display name while the retriever runs
+        if (placeholderCallback != null) {
+            deliver(
+                    source.uri, new Metadata(source.getDisplayName(), null, null, null, null),
+                    generation, placeholderCallback
+            );
+        }
+
+        String title = null;
+        String subtitle = null;
+        Bitmap artwork = null;
+        byte[] artworkData = null;
+        try (final MediaMetadataRetriever retriever = new MediaMetadataRetriever()) {
+            source.setDataSource(retriever);
+            title = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_TITLE);
+            subtitle = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST);
+            if (isStale(generation)) {
+                return null;
+            }
+            final byte[] raw = retriever.getEmbeddedPicture();
+            if (raw != null && !isStale(generation)) {
+                artwork = mArtworkDecoder.decode(raw);
+            }
+            if (artwork != null && !isStale(generation)) {
+                artworkData = mArtworkDecoder.encode(artwork);
+            }
+        } catch (RuntimeException ignored) {
+            // Unsupported or unreadable source, fall back to the display name
+        }
+
+        if (isStale(generation)) {
+            return null;
+        }
+        final Metadata metadata = shareArtwork(new Metadata(
+                title == null ? source.getDisplayName() : title, subtitle, artwork, artworkData,
+                null
+        ));
+        if (cacheKey != null) {
+            mMetadataCache.put(cacheKey, metadata);
+        }
+        return isStale(generation) ? null : metadata;
+    }
+
+    /**
+     * Attaches a content uri of the encoded artwork, so the notification carries the uri
+     * rather than the image.
+     */
+    @WorkerThread
+    @NonNull
+    private Metadata shareArtwork(@NonNull final Metadata metadata) {
+        if (metadata.artworkData == null) {
+            return metadata;
+        }
+
+        final Uri uri = mArtworkStore.share(metadata.artworkData);
+        return uri == null ? metadata : new Metadata(
+                metadata.title, metadata.subtitle, metadata.artwork, metadata.artworkData, uri
+        );
+    }
+
+    @WorkerThread
+    private void deliver(@NonNull final Uri uri, @NonNull final Metadata metadata,
+                         final int generation, @NonNull final Callback callback) {
+        mMainHandler.post(() -> {
+            if (mGeneration.get() == generation) {
+                callback.onMetadataLoaded(uri, metadata);
+            }
+        });
+    }
+
+    private boolean isStale(final int generation) {
+        return (generation != NO_GENERATION && mGeneration.get() != generation)
+                || Thread.currentThread().isInterrupted();
+    }
+
+    interface Callback {
+        @MainThread
+        void onMetadataLoaded(@NonNull Uri uri, @NonNull Metadata metadata);
+    }
+
+    static final class Metadata {
+        @NonNull
+        final String title;
+
+        @Nullable
+        final String subtitle;
+
+        @Nullable
+        final Bitmap artwork;
+
+        @Nullable
+        final byte[] artworkData;
+
+        /**
+         * Content uri of {@link #artworkData}, served by {@link ArtworkProvider}.
+         */
+        @Nullable
+        final Uri artworkUri;
+
+        Metadata(@NonNull String title, @Nullable String subtitle, @Nullable Bitmap artwork,
+                 @Nullable byte[] artworkData, @Nullable Uri artworkUri) {
+            this.title = title;
+            this.subtitle = subtitle;
+            this.artwork = artwork;
+            this.artworkData = artworkData;
+            this.artworkUri = artworkUri;
+        }
+    }
+}
@@ -0,0 +1,453 @@
+package com.obby.android.audioplayer;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.drawable.Icon;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.app.NotificationChannelCompat;
+import androidx.core.app.NotificationManagerCompat;
+
+import java.util.ArrayList;
+import java.util.Objects;
+
+/**
+ * Posts the player notification. Requested state is diffed against what was last
+ * published, bursts are coalesced to one post per frame window, and the service is
+ * only promoted to the foreground on the first post. Artwork is carried as a content uri,
+ * so the notification parcel stays small whatever the cover. The channel is created once
+ * per process on a background thread, and a post that comes before it exists waits for it
+ * without blocking the main thread. Actions start the service, so they still work once it
+ * has left the foreground.
+ */
+final class NotificationPublisher {
+    private static final long PUBLISH_INTERVAL_MILLIS = 16L;
+
+    private static final String SILENT_GROUP = "silent";
+
+    // Guarded by the class
+    private static boolean sChannelRequested;
+
+    private static boolean sChannelCreated;
+
+    private static final ArrayList<Runnable> sChannelCallbacks = new ArrayList<>();
+
+    private final Service mService;
+
+    private final String mStateAction;
+
+    private final String mLoopAction;
+
+    private final String mNextAction;
+
+    private final String mExitAction;
+
+    private final int mNotificationId;
+
+    private final Notification.Builder mNotificationBuilder;
+
+    private final NotificationManagerCompat mNotificationManager;
+
+    private final Notification.MediaStyle mStyle = new Notification.MediaStyle();
+
+    private final Notification.MediaStyle mActionsStyle =
+            new Notification.MediaStyle().setShowActionsInCompactView(0, 1, 2);
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mPublishRunnable = () -> publish(false);
+
+    private final Runnable mPromoteRunnable = () -> publish(true);
+
+    private PendingIntent mStatePendingIntent;
+
+    private PendingIntent mLoopPendingIntent;
+
+    private PendingIntent mNextPendingIntent;
+
+    private PendingIntent mExitPendingIntent;
+
+    private CharSequence mTitle;
+
+    private CharSequence mSubtitle;
+
+    private Bitmap mArtwork;
+
+    private Icon mArtworkIcon;
+
+    private boolean mHasPlayback;
+
+    private boolean mIsPlaying;
+
+    private boolean mIsLooping;
+
+    private boolean mHasNext;
+
+    private CharSequence mPublishedTitle;
+
+    private CharSequence mPublishedSubtitle;
+
+    private Bitmap mPublishedArtwork;
+
+    private boolean mPublishedHasPlayback;
+
+    private boolean mPublishedIsPlaying;
+
+    private boolean mPublishedIsLooping;
+
+    private boolean mPublishedHasNext;
+
+    private boolean mIsPublished;
+
+    private boolean mIsForeground;
+
+    private boolean mIsPublishScheduled;
+
+    private boolean mIsDeferred;
+
+    private long mLastPublishTime;
+
+    NotificationPublisher(@NonNull final Service service, @NonNull final String channelId,
+                          @NonNull final CharSequence channelName,
+                          final int notificationId, @NonNull final String stateAction,
+                          @NonNull final String loopAction, @NonNull final String nextAction,
+                          @NonNull final String exitAction,
+                          @NonNull final PendingIntent contentIntent) {
+        mService = service;
+        mNotificationId = notificationId;
+        mStateAction = stateAction;
+        mLoopAction = loopAction;
+        mNextAction = nextAction;
+        mExitAction = exitAction;
+        mNotificationManager = NotificationManagerCompat.from(service);
+        createChannel(service, channelId, channelName);
+        // Silent the way NotificationCompat does it, by alerting for a summary only
+        mNotificationBuilder = new Notification.Builder(service, channelId)
+                .setVisibility(Notification.VISIBILITY_PUBLIC)
+                .setOngoing(true)
+                .setGroup(SILENT_GROUP)
+                .setGroupAlertBehavior(Notification.GROUP_ALERT_SUMMARY)
+                .setSmallIcon(R.drawable.ic_audio_player)
+                .setContentIntent(contentIntent)
+                .setStyle(mStyle);
+    }
+
+    /**
+     * Sets the metadata to show. When {@code artworkUri} is given it is used as the large
+     * icon instead of {@code artwork}, so the notification parcel carries the uri rather
+     * than the pixels. Without it the encoded {@code artworkData} is carried, and only
+     * artwork that was never encoded is carried as pixels.
+     */
+    @AnyThread
+    synchronized void setMetadata(@Nullable final CharSequence title,
+                                  @Nullable final CharSequence subtitle,
+                                  @Nullable final Bitmap artwork,
+                                  @Nullable final byte[] artworkData,
+                                  @Nullable final Uri artworkUri) {
+        PlaybackMetrics.increment(PlaybackMetrics.COUNTER_NOTIFICATION_REQUESTS);
+        mTitle = title;
+        mSubtitle = subtitle;
+        if (mArtwork != artwork) {
+            mArtwork = artwork;
+            mArtworkIcon = artworkUri != null ? Icon.createWithContentUri(artworkUri)
+                    : artworkData != null ? Icon.createWithData(artworkData, 0, artworkData.length)
+                    : null;
+        }
+        schedulePublish();
+    }
+
+    @AnyThread
+    synchronized void setPlayback(final boolean playing, final boolean looping,
+                                  final boolean hasNext) {
+        PlaybackMetrics.increment(PlaybackMetrics.COUNTER_NOTIFICATION_REQUESTS);
+        mHasPlayback = true;
+        mIsPlaying = playing;
+        mIsLooping = looping;
+        mHasNext = hasNext;
+        schedulePublish();
+    }
+
+    /**
+     * Publishes pending changes right away, or once the channel exists, and promotes the
+     * service to the foreground even if it already is, as every foreground start of the
+     * service requires.
+     */
+    @MainThread
+    void publishNow() {
+        mMainHandler.removeCallbacks(mPublishRunnable);
+        synchronized (this) {
+            mIsPublishScheduled = false;
+        }
+        publish(true);
+    }
+
+    /**
+     * Holds back refreshes while nobody can see them, e.g. with the screen off. Changes
+     * made meanwhile are published in one post once this is cleared.
+     */
+    @MainThread
+    synchronized void setDeferred(final boolean deferred) {
+        if (mIsDeferred == deferred) {
+            return;
+        }
+        mIsDeferred = deferred;
+        if (!deferred) {
+            schedulePublish();
+        }
+    }
+
+    /**
+     * Demotes the service from the foreground and leaves the notification up, no longer
+     * ongoing so it can be dismissed. The next publish promotes it again, unless it only
+     * updates the paused notification.
+     */
+    @MainThread
+    void stopForeground() {
+        final Notification notification;
+        synchronized (this) {
+            if (!mIsForeground) {
+                return;
+            }
+            mIsForeground = false;
+            notification = mNotificationBuilder.setOngoing(false).build();
+        }
+        mService.stopForeground(Service.STOP_FOREGROUND_DETACH);
+        mNotificationManager.notify(mNotificationId, notification);
+    }
+
+    /**
+     * Drops pending updates and removes the notification, which a demoted service leaves
+     * behind.
+     */
+    @MainThread
+    void cancel() {
+        mMainHandler.removeCallbacks(mPublishRunnable);
+        synchronized (this) {
+            mIsPublishScheduled = false;
+        }
+        synchronized (NotificationPublisher.class) {
+            sChannelCallbacks.remove(mPromoteRunnable);
+        }
+        mNotificationManager.cancel(mNotificationId);
+    }
+
+    private void schedulePublish() {
+        // The first post is never deferred, it promotes the service to the foreground
+        if (mIsPublishScheduled || (mIsDeferred && mIsForeground)) {
+            return;
+        }
+        mIsPublishScheduled = true;
+        mMainHandler.postAtTime(
+                mPublishRunnable,
+                Math.max(SystemClock.uptimeMillis(), mLastPublishTime + PUBLISH_INTERVAL_MILLIS)
+        );
+    }
+
+    @MainThread
+    private void publish(final boolean promote) {
+        // Until the channel exists nothing can be posted, the first post follows it
+        if (!isChannelCreated(mPromoteRunnable)) {
+            synchronized (this) {
+                mIsPublishScheduled = false;
+            }
+            return;
+        }
+
+        final Notification notification;
+        final boolean detached;
+        synchronized (this) {
+            mIsPublishScheduled = false;
+            if (!promote
+                    && mIsPublished
+                    && Objects.equals(mPublishedTitle, mTitle)
+                    && Objects.equals(mPublishedSubtitle, mSubtitle)
+                    && mPublishedArtwork == mArtwork
+                    && mPublishedHasPlayback == mHasPlayback
+                    && mPublishedIsPlaying == mIsPlaying
+                    && mPublishedIsLooping == mIsLooping
+                    && mPublishedHasNext == mHasNext) {
+                return;
+            }
+
+            if (!mIsPublished
+                    || !Objects.equals(mPublishedTitle, mTitle)
+                    || !Objects.equals(mPublishedSubtitle, mSubtitle)
+                    || mPublishedArtwork != mArtwork) {
+                mNotificationBuilder.setContentTitle(mTitle).setContentText(mSubtitle);
+                if (mArtworkIcon != null) {
+                    mNotificationBuilder.setLargeIcon(mArtworkIcon);
+                } else {
+                    mNotificationBuilder.setLargeIcon(mArtwork);
+                }
+            }
+
+            if (!mIsPublished
+                    || mPublishedHasPlayback != mHasPlayback
+                    || mPublishedIsPlaying != mIsPlaying
+                    || mPublishedIsLooping != mIsLooping
+                    || mPublishedHasNext != mHasNext) {
+                mNotificationBuilder.setActions();
+                if (mHasPlayback) {
+                    mNotificationBuilder.addAction(createAction(
+                            mIsPlaying ? R.drawable.ic_pause : R.drawable.ic_play,
+                            mIsPlaying ? "Pause" : "Play",
+                            getStatePendingIntent()
+                    ));
+                    if (mHasNext) {
+                        mNotificationBuilder.addAction(createAction(
+                                R.drawable.ic_skip_next, "Next", getNextPendingIntent()
+                        ));
+                    }
+                    mNotificationBuilder
+                            .addAction(createAction(
+                                    mIsLooping ? R.drawable.ic_loop_on : R.drawable.ic_loop_off,
+                                    mIsLooping ? "No loop" : "Loop",
+                                    getLoopPendingIntent()
+                            ))
+                            .addAction(createAction(
+                                    R.drawable.ic_close_outlined,
+                                    "Exit",
+                                    getExitPendingIntent()
+                            ))
+                            .setStyle(mActionsStyle);
+                } else {
+                    mNotificationBuilder.setStyle(mStyle);
+                }
+            }
+
+            mPublishedTitle = mTitle;
+            mPublishedSubtitle = mSubtitle;
+            mPublishedArtwork = mArtwork;
+            mPublishedHasPlayback = mHasPlayback;
+            mPublishedIsPlaying = mIsPlaying;
+            mPublishedIsLooping = mIsLooping;
+            mPublishedHasNext = mHasNext;
+            // Updates while paused outside the foreground stay there, other posts promote
+            detached = !promote && !mIsForeground && mIsPublished && !mIsPlaying;
+            mIsPublished = true;
+            mLastPublishTime = SystemClock.uptimeMillis();
+            notification = mNotificationBuilder.setOngoing(!detached).build();
+        }
+
+        PlaybackMetrics.increment(PlaybackMetrics.COUNTER_NOTIFICATION_POSTS);
+        if (detached || (mIsForeground && !promote)) {
+            mNotificationManager.notify(mNotificationId, notification);
+        } else {
+            mService.startForeground(mNotificationId, notification);
+            mIsForeground = true;
+        }
+    }
+
+    /**
+     * Starts creating the channel unless this process already did.
+     */
+    private static synchronized void createChannel(@NonNull final Service service,
+                                                   @NonNull final String channelId,
+                                                   @NonNull final CharSequence channelName) {
+        if (sChannelRequested) {
+            return;
+        }
+        sChannelRequested = true;
+
+        final NotificationManagerCompat notificationManager =
+                NotificationManagerCompat.from(service.getApplicationContext());
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        new Thread(() -> {
+            notificationManager.createNotificationChannel(
+                    new NotificationChannelCompat.Builder(
+                            channelId, NotificationManagerCompat.IMPORTANCE_DEFAULT
+                    ).setName(channelName).build()
+            );
+            synchronized (NotificationPublisher.class) {
+                sChannelCreated = true;
+            }
+            mainHandler.post(NotificationPublisher::runChannelCallbacks);
+        }, "NotificationChannel").start();
+    }
+
+    /**
+     * Returns whether the channel exists, and otherwise runs {@code callback} on the main
+     * thread once it does. The channel is normally created long before the first post.
+     */
+    private static synchronized boolean isChannelCreated(@NonNull final Runnable callback) {
+        if (sChannelCreated) {
+            return true;
+        }
+        if (!sChannelCallbacks.contains(callback)) {
+            sChannelCallbacks.add(callback);
+        }
+        return false;
+    }
+
+    @MainThread
+    private static void runChannelCallbacks() {
+        final Runnable[] callbacks;
+        synchronized (NotificationPublisher.class) {
+            callbacks = sChannelCallbacks.toArray(new Runnable[0]);
+            sChannelCallbacks.clear();
+        }
+        for (final Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    @NonNull
+    private PendingIntent getStatePendingIntent() {
+        if (mStatePendingIntent == null) {
+            mStatePendingIntent = createActionPendingIntent(mStateAction);
+        }
+        return mStatePendingIntent;
+    }
+
+    @NonNull
+    private PendingIntent getLoopPendingIntent() {
+        if (mLoopPendingIntent == null) {
+            mLoopPendingIntent = createActionPendingIntent(mLoopAction);
+        }
+        return mLoopPendingIntent;
+    }
+
+    @NonNull
+    private PendingIntent getNextPendingIntent() {
+        if (mNextPendingIntent == null) {
+            mNextPendingIntent = createActionPendingIntent(mNextAction);
+        }
+        return mNextPendingIntent;
+    }
+
+    @NonNull
+    private PendingIntent getExitPendingIntent() {
+        if (mExitPendingIntent == null) {
+            mExitPendingIntent = createActionPendingIntent(mExitAction);
+        }
+        return mExitPendingIntent;
+    }
+
+    @NonNull
+    private Notification.Action createAction(final int icon, @NonNull final CharSequence title,
+                                             @NonNull final PendingIntent intent) {
+        return new Notification.Action.Builder(
+                Icon.createWithResource(mService, icon), title, intent
+        ).build();
+    }
+
+    @NonNull
+    private PendingIntent createActionPendingIntent(@NonNull final String action) {
+        return PendingIntent.getForegroundService(
+                mService,
+                0,
+                new Intent(action).setClass(mService, mService.getClass()),
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE
+        );
+    }
+}
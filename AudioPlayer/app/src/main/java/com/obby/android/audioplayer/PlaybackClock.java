@@ -0,0 +1,112 @@
+package com.obby.android.audioplayer;
+
+import android.media.MediaTimestamp;
+import android.os.Build;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local media clock extrapolated from the last anchor the player reported, so reading
+ * the position does not need a binder call into the media server.
+ */
+final class PlaybackClock {
+    private volatile Anchor mAnchor = new Anchor(0L, 0L, 0f, 0L, false);
+
+    @AnyThread
+    void anchor(@NonNull final MediaTimestamp timestamp) {
+        anchor(timestamp.getAnchorMediaTimeUs(), getAnchorSystemNanoTime(timestamp),
+                timestamp.getMediaClockRate());
+    }
+
+    @AnyThread
+    void anchor(final long mediaTimeUs, final long systemNanoTime, final float rate) {
+        final Anchor anchor = mAnchor;
+        mAnchor = new Anchor(
+                mediaTimeUs, systemNanoTime, rate, anchor.durationMs, anchor.looping
+        );
+    }
+
+    @AnyThread
+    void setDuration(final long durationMs) {
+        final Anchor anchor = mAnchor;
+        mAnchor = new Anchor(
+                anchor.mediaTimeUs, anchor.systemNanoTime, anchor.rate, durationMs, anchor.looping
+        );
+    }
+
+    @AnyThread
+    void setLooping(final boolean looping) {
+        final Anchor anchor = mAnchor;
+        mAnchor = new Anchor(
+                anchor.mediaTimeUs, anchor.systemNanoTime, anchor.rate, anchor.durationMs, looping
+        );
+    }
+
+    @AnyThread
+    void reset() {
+        mAnchor = new Anchor(0L, 0L, 0f, 0L, false);
+    }
+
+    @AnyThread
+    long getPosition() {
+        return getPosition(System.nanoTime());
+    }
+
+    @AnyThread
+    long getPosition(final long nowNanoTime) {
+        final Anchor anchor = mAnchor;
+        long positionUs = anchor.mediaTimeUs;
+        if (anchor.rate != 0f) {
+            positionUs += (long) (TimeUnit.NANOSECONDS.toMicros(
+                    nowNanoTime - anchor.systemNanoTime
+            ) * anchor.rate);
+        }
+
+        final long positionMs = Math.max(0L, TimeUnit.MICROSECONDS.toMillis(positionUs));
+        if (anchor.durationMs <= 0L) {
+            return positionMs;
+        }
+        return anchor.looping ? positionMs % anchor.durationMs
+                : Math.min(positionMs, anchor.durationMs);
+    }
+
+    @AnyThread
+    long getDuration() {
+        return mAnchor.durationMs;
+    }
+
+    @AnyThread
+    boolean isRunning() {
+        return mAnchor.rate != 0f;
+    }
+
+    @SuppressWarnings("deprecation")
+    static long getAnchorSystemNanoTime(@NonNull final MediaTimestamp timestamp) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+                ? timestamp.getAnchorSystemNanoTime() : timestamp.getAnchorSytemNanoTime();
+    }
+
+    private static final class Anchor {
+        final long mediaTimeUs;
+
+        final long systemNanoTime;
+
+        final float rate;
+
+        final long durationMs;
+
+        final boolean looping;
+
+        Anchor(long mediaTimeUs, long systemNanoTime, float rate, long durationMs,
+               boolean looping) {
+            this.mediaTimeUs = mediaTimeUs;
+            this.systemNanoTime = systemNanoTime;
+            this.rate = rate;
+            this.durationMs = durationMs;
+            this.looping = looping;
+        }
+    }
+}
@@ -0,0 +1,972 @@
+package com.obby.android.audioplayer;
+
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.AudioFocusRequest;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Owns the {@link PlaybackEngine} on a dedicated playback thread. Commands from any thread
+ * go through a lock-free queue that the playback thread drains, and the resulting state
+ * is published as an immutable snapshot.
+ */
+final class PlaybackController {
+    private static final int COMMAND_SET_SOURCE = 0;
+
+    private static final int COMMAND_PLAY = 1;
+
+    private static final int COMMAND_PAUSE = 2;
+
+    private static final int COMMAND_TOGGLE_PLAYBACK = 3;
+
+    private static final int COMMAND_TOGGLE_LOOPING = 4;
+
+    private static final int COMMAND_SEEK = 5;
+
+    private static final int COMMAND_FOCUS_CHANGE = 6;
+
+    private static final int COMMAND_RELEASE = 7;
+
+    private static final int COMMAND_SET_NEXT_SOURCE = 8;
+
+    private static final int COMMAND_SCRUB = 9;
+
+    private static final int COMMAND_SET_LOOP_RANGE = 10;
+
+    private static final int COMMAND_SUSPEND = 11;
+
+    private static final long NO_POSITION = -1L;
+
+    private final Context mContext;
+
+    private final PlaybackClock mPlaybackClock;
+
+    private final SourceResolver mSourceResolver;
+
+    private final Listener mListener;
+
+    private final HandlerThread mPlaybackThread =
+            new HandlerThread("AudioPlayback", Process.THREAD_PRIORITY_AUDIO);
+
+    private final Handler mPlaybackHandler;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final ConcurrentLinkedQueue<Command> mCommandQueue = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean mIsDrainScheduled = new AtomicBoolean();
+
+    private final AtomicBoolean mIsDispatchScheduled = new AtomicBoolean();
+
+    private final AtomicReference<State> mState = new AtomicReference<>(State.IDLE);
+
+    private final AtomicReference<Uri> mPendingSource = new AtomicReference<>();
+
+    private final AtomicLong mPendingScrub = new AtomicLong(NO_POSITION);
+
+    private final Runnable mDrainRunnable = this::drainCommands;
+
+    private final Runnable mDispatchRunnable = this::dispatchState;
+
+    private final AudioManager mAudioManager;
+
+    private final AudioFocusRequest mAudioFocusRequest;
+
+    private final PlaybackEngine.Factory mEngineFactory;
+
+    // Playback thread only
+    private PlaybackEngine mPlayer;
+
+    private Uri mUri;
+
+    private SourceResolver.Source mSource;
+
+    private boolean mPlayerPrepared;
+
+    private PlaybackEngine mNextPlayer;
+
+    private Uri mNextUri;
+
+    private SourceResolver.Source mNextSource;
+
+    private boolean mNextPlayerPrepared;
+
+    private int mHandOffCount;
+
+    private boolean mPlaybackDelayed;
+
+    private boolean mResumeOnFocusGain;
+
+    private boolean mReleased;
+
+    private long mPrepareTime;
+
+    private boolean mSeekInFlight;
+
+    private long mQueuedSeekPosition = NO_POSITION;
+
+    private int mQueuedSeekMode;
+
+    private long[] mLoopRange;
+
+    // Saved while suspended or moving to another player, restored once prepared again
+    private Uri mSuspendedUri;
+
+    private Uri mSuspendedNextUri;
+
+    private long mResumePosition = NO_POSITION;
+
+    private boolean mResumeLooping;
+
+    private long[] mResumeLoopRange;
+
+    private boolean mResumePaused;
+
+    PlaybackController(@NonNull final Context context, @NonNull final PlaybackClock playbackClock,
+                       @NonNull final SourceResolver sourceResolver,
+                       @NonNull final PlaybackEngine.Factory engineFactory,
+                       @NonNull final Listener listener) {
+        mContext = context.getApplicationContext();
+        mPlaybackClock = playbackClock;
+        mSourceResolver = sourceResolver;
+        mEngineFactory = engineFactory;
+        mListener = listener;
+        mAudioManager = mContext.getSystemService(AudioManager.class);
+
+        mPlaybackThread.start();
+        mPlaybackHandler = new Handler(mPlaybackThread.getLooper());
+        mAudioFocusRequest = new AudioFocusRequest.Builder(AudioManager.AUDIOFOCUS_GAIN)
+                .setAudioAttributes(
+                        new AudioAttributes.Builder()
+                                .setUsage(AudioAttributes.USAGE_MEDIA)
+                                .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                                .build()
+                )
+                .setAcceptsDelayedFocusGain(true)
+                .setOnAudioFocusChangeListener(focusChange -> enqueue(
+                        new Command(COMMAND_FOCUS_CHANGE, null, focusChange)
+                ), mPlaybackHandler)
+                .build();
+
+        // Create the player on the playback thread so its callbacks are delivered there
+        mPlaybackHandler.post(() -> mPlayer = createPlayer(false));
+    }
+
+    @AnyThread
+    @NonNull
+    State getState() {
+        return mState.get();
+    }
+
+    /**
+     * Sets the source to play. Sources set faster than the playback thread can take them
+     * are coalesced so only the newest one is prepared.
+     */
+    @AnyThread
+    void setSource(@NonNull final Uri uri) {
+        if (mPendingSource.getAndSet(uri) == null) {
+            enqueue(new Command(COMMAND_SET_SOURCE, null, 0L));
+        }
+    }
+
+    /**
+     * Sets the source to continue with once the current one completes. It is prepared on a
+     * second player in the background and chained with
+     * {@link PlaybackEngine#setNextEngine}, so the hand-off is gapless.
+     */
+    @AnyThread
+    void setNextSource(@Nullable final Uri uri) {
+        enqueue(new Command(COMMAND_SET_NEXT_SOURCE, uri, 0L));
+    }
+
+    @AnyThread
+    void play() {
+        enqueue(new Command(COMMAND_PLAY, null, 0L));
+    }
+
+    @AnyThread
+    void pause() {
+        enqueue(new Command(COMMAND_PAUSE, null, 0L));
+    }
+
+    @AnyThread
+    void togglePlayback() {
+        enqueue(new Command(COMMAND_TOGGLE_PLAYBACK, null, 0L));
+    }
+
+    @AnyThread
+    void toggleLooping() {
+        enqueue(new Command(COMMAND_TOGGLE_LOOPING, null, 0L));
+    }
+
+    /**
+     * Seeks exactly to {@code position}, e.g. when scrubbing ends.
+     */
+    @AnyThread
+    void seekTo(final long position) {
+        enqueue(new Command(COMMAND_SEEK, null, position));
+    }
+
+    /**
+     * Seeks to the sync frame before {@code position} for a preview while scrubbing.
+     * Positions set faster than the player seeks are coalesced so only the newest is used.
+     */
+    @AnyThread
+    void scrubTo(final long position) {
+        if (mPendingScrub.getAndSet(Math.max(0L, position)) == NO_POSITION) {
+            enqueue(new Command(COMMAND_SCRUB, null, 0L));
+        }
+    }
+
+    /**
+     * Limits looping of the current source to a range, negative values standing for its
+     * start and end. Engines that cannot loop a range keep looping the whole source.
+     */
+    @AnyThread
+    void setLoopRange(final long startMs, final long endMs) {
+        enqueue(new Command(COMMAND_SET_LOOP_RANGE, new long[]{startMs, endMs}, 0L));
+    }
+
+    /**
+     * Releases the players of a paused source, remembering where it was. Playing again
+     * prepares the source anew and seeks back in one step.
+     */
+    @AnyThread
+    void suspend() {
+        enqueue(new Command(COMMAND_SUSPEND, null, 0L));
+    }
+
+    @AnyThread
+    void release() {
+        enqueue(new Command(COMMAND_RELEASE, null, 0L));
+    }
+
+    @AnyThread
+    private void enqueue(@NonNull final Command command) {
+        mCommandQueue.offer(command);
+        if (mIsDrainScheduled.compareAndSet(false, true)) {
+            mPlaybackHandler.post(mDrainRunnable);
+        }
+    }
+
+    @WorkerThread
+    private void drainCommands() {
+        mIsDrainScheduled.set(false);
+        Command command;
+        while ((command = mCommandQueue.poll()) != null) {
+            if (!mReleased) {
+                execute(command);
+            }
+        }
+    }
+
+    @WorkerThread
+    private void execute(@NonNull final Command command) {
+        switch (command.type) {
+            case COMMAND_SET_SOURCE:
+                setSourceInternal(Objects.requireNonNull(mPendingSource.getAndSet(null)));
+                break;
+            case COMMAND_SET_NEXT_SOURCE:
+                if (mSuspendedUri != null) {
+                    mSuspendedNextUri = (Uri) command.arg;
+                } else {
+                    setNextSourceInternal((Uri) command.arg);
+                }
+                break;
+            case COMMAND_PLAY:
+                if (mSuspendedUri != null) {
+                    resumeInternal();
+                } else if (mPlayerPrepared && !mPlayer.isPlaying()) {
+                    startPlayback();
+                }
+                break;
+            case COMMAND_PAUSE:
+                if (mPlayerPrepared && mPlayer.isPlaying()) {
+                    pausePlayer();
+                } else if (mSuspendedUri == null && mResumePosition != NO_POSITION) {
+                    // Preparing to pick up where it was, stay paused then
+                    mResumePaused = true;
+                }
+                break;
+            case COMMAND_TOGGLE_PLAYBACK:
+                if (mSuspendedUri != null) {
+                    resumeInternal();
+                } else if (mPlayerPrepared) {
+                    if (mPlayer.isPlaying()) {
+                        pausePlayer();
+                    } else {
+                        startPlayback();
+                    }
+                }
+                break;
+            case COMMAND_TOGGLE_LOOPING:
+                if (mSuspendedUri != null) {
+                    mResumeLooping = !mResumeLooping;
+                    publishState(false);
+                } else if (mPlayerPrepared) {
+                    if (!mPlayer.isLooping() && !mPlayer.supportsSeamlessLooping()) {
+                        moveToLoopingPlayer();
+                    } else {
+                        mPlayer.setLooping(!mPlayer.isLooping());
+                        publishState(false);
+                    }
+                }
+                break;
+            case COMMAND_SEEK:
+                if (mSuspendedUri != null) {
+                    mResumePosition = command.value;
+                    mPlaybackClock.anchor(
+                            TimeUnit.MILLISECONDS.toMicros(command.value), System.nanoTime(), 0f
+                    );
+                } else {
+                    requestSeek(command.value, MediaPlayer.SEEK_CLOSEST);
+                }
+                break;
+            case COMMAND_SCRUB:
+                requestSeek(
+                        mPendingScrub.getAndSet(NO_POSITION), MediaPlayer.SEEK_PREVIOUS_SYNC
+                );
+                break;
+            case COMMAND_SET_LOOP_RANGE:
+                if (mPlayerPrepared) {
+                    final long[] range = (long[]) Objects.requireNonNull(command.arg);
+                    mLoopRange = range;
+                    mPlayer.setLoopRange(range[0], range[1]);
+                }
+                break;
+            case COMMAND_FOCUS_CHANGE:
+                onAudioFocusChange((int) command.value);
+                break;
+            case COMMAND_SUSPEND:
+                if (mPlayerPrepared && !mPlayer.isPlaying()) {
+                    suspendInternal();
+                    mMainHandler.post(mListener::onPlaybackSuspended);
+                }
+                break;
+            case COMMAND_RELEASE:
+                releaseInternal();
+                break;
+        }
+    }
+
+    /**
+     * Creates a player whose callbacks act on whichever role, current or next, it has when
+     * they are delivered.
+     */
+    @WorkerThread
+    @NonNull
+    private PlaybackEngine createPlayer(final boolean looping) {
+        final PlaybackEngine player = mEngineFactory.create(looping);
+        player.setListener(new PlaybackEngine.Listener() {
+            @Override
+            public void onPrepared(@NonNull PlaybackEngine mp) {
+                if (mp == mPlayer) {
+                    endPrepareTrace(true);
+                    mPlayerPrepared = true;
+                    mPlaybackClock.setDuration(mp.getDuration());
+                    boolean start = true;
+                    if (mResumePosition != NO_POSITION) {
+                        start = !mResumePaused;
+                        restoreSuspendedState();
+                    }
+                    linkNextPlayer();
+                    publishState(true);
+                    if (start) {
+                        startPlayback();
+                    }
+                } else if (mp == mNextPlayer) {
+                    mNextPlayerPrepared = true;
+                    linkNextPlayer();
+                }
+            }
+
+            @Override
+            public void onCompletion(@NonNull PlaybackEngine mp) {
+                if (mp != mPlayer) {
+                    return;
+                }
+                if (mNextPlayerPrepared) {
+                    // The next player has already been started by the current one
+                    mHandOffCount++;
+                    swapToNextPlayer();
+                    if (!mPlayer.isPlaying()) {
+                        // Unless it is of another kind, which the current one cannot chain
+                        startPlayer();
+                    }
+                } else {
+                    publishState(true);
+                }
+            }
+
+            @Override
+            public void onSeekComplete(@NonNull PlaybackEngine mp) {
+                if (mp != mPlayer) {
+                    return;
+                }
+                mSeekInFlight = false;
+                if (mQueuedSeekPosition != NO_POSITION) {
+                    final long position = mQueuedSeekPosition;
+                    mQueuedSeekPosition = NO_POSITION;
+                    seekPlayer(position, mQueuedSeekMode);
+                } else {
+                    publishState(true);
+                }
+            }
+
+            @Override
+            public void onMediaTimeDiscontinuity(@NonNull PlaybackEngine mp, long mediaTimeUs,
+                                                 long systemNanoTime, float rate) {
+                if (mp == mPlayer) {
+                    mPlaybackClock.anchor(mediaTimeUs, systemNanoTime, rate);
+                    publishState(false);
+                }
+            }
+
+            @Override
+            public void onError(@NonNull PlaybackEngine mp) {
+                if (mp == mPlayer) {
+                    PlaybackController.this.onError();
+                } else if (mp == mNextPlayer) {
+                    // Leave it to the current source to complete normally
+                    clearNextSource();
+                }
+            }
+        });
+        return player;
+    }
+
+    @WorkerThread
+    private void setSourceInternal(@NonNull final Uri uri) {
+        mPlaybackDelayed = false;
+        mResumeOnFocusGain = false;
+        mPlaybackClock.reset();
+        mLoopRange = null;
+        clearSuspendedState();
+        if (mPlayer == null) {
+            mPlayer = createPlayer(false);
+        }
+
+        // Start right away if the requested source is already prepared as the next one
+        if (mNextPlayerPrepared && uri.equals(mNextUri)) {
+            endPrepareTrace(false);
+            swapToNextPlayer();
+            startPlayback();
+            return;
+        }
+
+        mUri = uri;
+        mPlayerPrepared = false;
+        clearSeeks();
+        final long resetTime = PlaybackMetrics.beginPlayerCall();
+        mPlayer.reset();
+        PlaybackMetrics.endPlayerCall(resetTime);
+        endPrepareTrace(false);
+        publishState(false);
+        mPrepareTime = StartupTrace.beginAsync(StartupTrace.PHASE_PREPARE);
+
+        // Keep the source resolved while it plays so the metadata retriever shares it
+        mSourceResolver.release(mSource);
+        mSource = mSourceResolver.resolve(uri);
+        try {
+            mPlayer.setDataSource(mSource);
+        } catch (IOException | RuntimeException e) {
+            onError();
+            return;
+        }
+        mPlayer.prepareAsync();
+    }
+
+    @WorkerThread
+    private void setNextSourceInternal(@Nullable final Uri uri) {
+        if (Objects.equals(uri, mNextUri)) {
+            return;
+        }
+
+        clearNextSource();
+        if (uri == null) {
+            return;
+        }
+
+        // Prepare the next source in the background
+        if (mNextPlayer == null) {
+            mNextPlayer = createPlayer(false);
+        }
+        mNextUri = uri;
+        mNextSource = mSourceResolver.resolve(uri);
+        try {
+            mNextPlayer.setDataSource(mNextSource);
+        } catch (IOException | RuntimeException e) {
+            clearNextSource();
+            return;
+        }
+        mNextPlayer.prepareAsync();
+    }
+
+    @WorkerThread
+    private void clearNextSource() {
+        if (mPlayerPrepared && mNextPlayerPrepared) {
+            mPlayer.setNextEngine(null);
+        }
+        mNextUri = null;
+        mNextPlayerPrepared = false;
+        if (mNextPlayer != null) {
+            mNextPlayer.reset();
+        }
+        mSourceResolver.release(mNextSource);
+        mNextSource = null;
+    }
+
+    @WorkerThread
+    private void suspendInternal() {
+        saveSuspendedState(mPlayer.isLooping());
+        mPlaybackDelayed = false;
+        mResumeOnFocusGain = false;
+        mAudioManager.abandonAudioFocusRequest(mAudioFocusRequest);
+
+        // Free both decoders, the clock keeps showing the paused position
+        if (mNextPlayer != null) {
+            mNextPlayer.release();
+            mNextPlayer = null;
+        }
+        publishState(false);
+    }
+
+    /**
+     * Moves the current source to a player created for looping, which prepares it anew and
+     * picks up where it was, with the loop range and playing or paused as before.
+     */
+    @WorkerThread
+    private void moveToLoopingPlayer() {
+        final boolean playing = mPlayer.isPlaying();
+        saveSuspendedState(true);
+        mResumePaused = !playing;
+        resumeInternal();
+    }
+
+    /**
+     * Saves what {@link #restoreSuspendedState} puts back on the next player of the current
+     * source, then releases the current player and source.
+     */
+    @WorkerThread
+    private void saveSuspendedState(final boolean looping) {
+        mSuspendedUri = mUri;
+        mSuspendedNextUri = mNextUri;
+        mResumePosition = mPlayer.getCurrentPosition();
+        mResumeLooping = looping;
+        mResumeLoopRange = mLoopRange;
+
+        clearNextSource();
+        clearSeeks();
+        mPlayerPrepared = false;
+        mPlayer.release();
+        mPlayer = null;
+        mSourceResolver.release(mSource);
+        mSource = null;
+    }
+
+    @WorkerThread
+    private void resumeInternal() {
+        final Uri uri = mSuspendedUri;
+        mSuspendedUri = null;
+        mUri = uri;
+        mPlayer = createPlayer(mResumeLooping);
+        mPrepareTime = StartupTrace.beginAsync(StartupTrace.PHASE_PREPARE);
+        mSource = mSourceResolver.resolve(uri);
+        try {
+            mPlayer.setDataSource(mSource);
+        } catch (IOException | RuntimeException e) {
+            clearSuspendedState();
+            onError();
+            return;
+        }
+        mPlayer.prepareAsync();
+    }
+
+    /**
+     * Puts the state saved by {@link #saveSuspendedState} back on the prepared player, which
+     * continues from there.
+     */
+    @WorkerThread
+    private void restoreSuspendedState() {
+        mPlayer.setLooping(mResumeLooping);
+        if (mResumeLoopRange != null) {
+            mLoopRange = mResumeLoopRange;
+            mPlayer.setLoopRange(mLoopRange[0], mLoopRange[1]);
+        }
+        if (mResumePosition > 0L) {
+            seekPlayer(mResumePosition, MediaPlayer.SEEK_CLOSEST);
+        }
+        final Uri nextUri = mSuspendedNextUri;
+        clearSuspendedState();
+        if (mNextUri == null) {
+            setNextSourceInternal(nextUri);
+        }
+    }
+
+    @WorkerThread
+    private void clearSuspendedState() {
+        mSuspendedUri = null;
+        mSuspendedNextUri = null;
+        mResumePosition = NO_POSITION;
+        mResumeLooping = false;
+        mResumeLoopRange = null;
+        mResumePaused = false;
+    }
+
+    @WorkerThread
+    private void linkNextPlayer() {
+        if (mPlayerPrepared && mNextPlayerPrepared) {
+            mPlayer.setNextEngine(mNextPlayer);
+        }
+    }
+
+    /**
+     * Promotes the prepared next player to the current one and keeps the previous player
+     * around, reset, to prepare the source after that.
+     */
+    @WorkerThread
+    private void swapToNextPlayer() {
+        final PlaybackEngine previousPlayer = mPlayer;
+        mPlayer = mNextPlayer;
+        final SourceResolver.Source previousSource = mSource;
+        mUri = mNextUri;
+        mSource = mNextSource;
+        mPlayerPrepared = true;
+        mNextPlayer = previousPlayer;
+        mNextUri = null;
+        mNextSource = null;
+        mNextPlayerPrepared = false;
+        mLoopRange = null;
+        clearSeeks();
+        previousPlayer.reset();
+        mSourceResolver.release(previousSource);
+
+        mPlaybackClock.setDuration(mPlayer.getDuration());
+        publishState(true);
+    }
+
+    /**
+     * Keeps at most one seek in flight. A seek requested meanwhile replaces any queued one
+     * and is issued when the current one completes.
+     */
+    @WorkerThread
+    private void requestSeek(final long position, final int mode) {
+        if (!mPlayerPrepared || position == NO_POSITION) {
+            return;
+        }
+
+        if (mSeekInFlight) {
+            mQueuedSeekPosition = position;
+            mQueuedSeekMode = mode;
+        } else {
+            seekPlayer(position, mode);
+        }
+    }
+
+    @WorkerThread
+    private void seekPlayer(final long position, final int mode) {
+        mSeekInFlight = true;
+        final long callTime = PlaybackMetrics.beginPlayerCall();
+        mPlayer.seekTo(position, mode);
+        PlaybackMetrics.endPlayerCall(callTime);
+    }
+
+    @WorkerThread
+    private void clearSeeks() {
+        mSeekInFlight = false;
+        mQueuedSeekPosition = NO_POSITION;
+    }
+
+    @WorkerThread
+    private void startPlayback() {
+        if (!mPlayerPrepared) {
+            return;
+        }
+
+        final long startTime = StartupTrace.begin(StartupTrace.PHASE_START);
+        boolean started = false;
+        switch (mAudioManager.requestAudioFocus(mAudioFocusRequest)) {
+            case AudioManager.AUDIOFOCUS_REQUEST_GRANTED:
+                mPlaybackDelayed = false;
+                startPlayer();
+                started = true;
+                break;
+            case AudioManager.AUDIOFOCUS_REQUEST_FAILED:
+                mPlaybackDelayed = false;
+                break;
+            case AudioManager.AUDIOFOCUS_REQUEST_DELAYED:
+                mPlaybackDelayed = true;
+                break;
+        }
+        StartupTrace.end(StartupTrace.PHASE_START, started ? startTime : 0L);
+
+        if (started) {
+            publishState(true);
+        }
+    }
+
+    @WorkerThread
+    private void onAudioFocusChange(final int focusChange) {
+        if (!mPlayerPrepared) {
+            return;
+        }
+
+        switch (focusChange) {
+            case AudioManager.AUDIOFOCUS_GAIN:
+                PlaybackMetrics.increment(PlaybackMetrics.COUNTER_FOCUS_GAINS);
+                if (mPlaybackDelayed || mResumeOnFocusGain) {
+                    mPlaybackDelayed = false;
+                    mResumeOnFocusGain = false;
+                    if (!mPlayer.isPlaying()) {
+                        startPlayer();
+                        publishState(true);
+                    }
+                }
+                break;
+            case AudioManager.AUDIOFOCUS_LOSS:
+                PlaybackMetrics.increment(PlaybackMetrics.COUNTER_FOCUS_LOSSES);
+                mResumeOnFocusGain = false;
+                mPlaybackDelayed = false;
+                if (mPlayer.isPlaying()) {
+                    pausePlayer();
+                }
+                break;
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
+                PlaybackMetrics.increment(PlaybackMetrics.COUNTER_FOCUS_TRANSIENT_LOSSES);
+                mResumeOnFocusGain = mPlayer.isPlaying();
+                mPlaybackDelayed = false;
+                if (mPlayer.isPlaying()) {
+                    pausePlayer();
+                }
+                break;
+        }
+    }
+
+    @WorkerThread
+    private void startPlayer() {
+        final long callTime = PlaybackMetrics.beginPlayerCall();
+        mPlayer.start();
+        PlaybackMetrics.endPlayerCall(callTime);
+    }
+
+    @WorkerThread
+    private void pausePlayer() {
+        final long callTime = PlaybackMetrics.beginPlayerCall();
+        mPlayer.pause();
+        PlaybackMetrics.endPlayerCall(callTime);
+        publishState(true);
+    }
+
+    @WorkerThread
+    private void onError() {
+        endPrepareTrace(false);
+        mPlayerPrepared = false;
+        publishState(false);
+        mMainHandler.post(mListener::onPlaybackError);
+    }
+
+    /**
+     * Closes the pending prepare trace section, recording it only if the prepare completed.
+     */
+    @WorkerThread
+    private void endPrepareTrace(final boolean prepared) {
+        if (mPrepareTime != 0L) {
+            StartupTrace.endAsync(StartupTrace.PHASE_PREPARE, prepared ? mPrepareTime : 0L);
+            mPrepareTime = 0L;
+        }
+    }
+
+    @WorkerThread
+    private void releaseInternal() {
+        mReleased = true;
+        PlaybackMetrics.setWakeLockHeld(false);
+        endPrepareTrace(false);
+        mPlayerPrepared = false;
+        mAudioManager.abandonAudioFocusRequest(mAudioFocusRequest);
+        if (mPlayer != null) {
+            mPlayer.release();
+            mPlayer = null;
+        }
+        if (mNextPlayer != null) {
+            mNextPlayer.release();
+            mNextPlayer = null;
+        }
+        mNextUri = null;
+        mNextPlayerPrepared = false;
+        mSourceResolver.release(mSource);
+        mSource = null;
+        mSourceResolver.release(mNextSource);
+        mNextSource = null;
+        mCommandQueue.clear();
+        mPlaybackThread.quitSafely();
+    }
+
+    @WorkerThread
+    private void publishState(final boolean anchorClock) {
+        final State state;
+        if (mPlayerPrepared) {
+            final boolean isPlaying = mPlayer.isPlaying();
+            final boolean isLooping = mPlayer.isLooping();
+            if (anchorClock) {
+                anchorPlaybackClock(isPlaying);
+            }
+            mPlaybackClock.setLooping(isLooping);
+            PlaybackMetrics.setWakeLockHeld(isPlaying && mPlayer.holdsWakeLock());
+            PlaybackMetrics.setPlaybackPath(mPlayer.getOutputPath());
+            PlaybackMetrics.setNoOffloadReason(mPlayer.getNoOffloadReason());
+            state = new State(
+                    mUri, true, isPlaying, isLooping, mPlaybackClock.getDuration(), mHandOffCount,
+                    false
+            );
+        } else {
+            PlaybackMetrics.setWakeLockHeld(false);
+            // A suspended source shows the looping it plays again with
+            final boolean suspended = mSuspendedUri != null;
+            state = new State(
+                    mUri, false, false, suspended && mResumeLooping, 0L, mHandOffCount,
+                    suspended
+            );
+        }
+
+        if (!state.equals(mState.getAndSet(state)) || anchorClock) {
+            scheduleDispatch();
+        }
+    }
+
+    @WorkerThread
+    private void anchorPlaybackClock(final boolean isPlaying) {
+        final long callTime = PlaybackMetrics.beginPlayerCall();
+        final boolean anchored = mPlayer.anchor(mPlaybackClock);
+        PlaybackMetrics.endPlayerCall(callTime);
+        if (!anchored) {
+            mPlaybackClock.anchor(
+                    TimeUnit.MILLISECONDS.toMicros(mPlayer.getCurrentPosition()),
+                    System.nanoTime(),
+                    isPlaying ? 1f : 0f
+            );
+        }
+    }
+
+    @AnyThread
+    private void scheduleDispatch() {
+        if (mIsDispatchScheduled.compareAndSet(false, true)) {
+            mMainHandler.post(mDispatchRunnable);
+        }
+    }
+
+    @MainThread
+    private void dispatchState() {
+        mIsDispatchScheduled.set(false);
+        mListener.onPlaybackStateChanged(mState.get());
+    }
+
+    interface Listener {
+        @MainThread
+        void onPlaybackStateChanged(@NonNull State state);
+
+        @MainThread
+        void onPlaybackError();
+
+        /**
+         * Called once {@link #suspend} released the players, which it does not while playing.
+         */
+        @MainThread
+        void onPlaybackSuspended();
+    }
+
+    static final class State {
+        static final State IDLE = new State(null, false, false, false, 0L, 0, false);
+
+        @Nullable
+        final Uri uri;
+
+        final boolean prepared;
+
+        final boolean playing;
+
+        final boolean looping;
+
+        final long duration;
+
+        /**
+         * Number of gapless hand-offs to the next source so far. It tells a hand-off apart
+         * even when the next source has the same uri as the current one.
+         */
+        final int handOffCount;
+
+        /**
+         * Whether the players of the source are released until it plays again. Looping may
+         * still be toggled then.
+         */
+        final boolean suspended;
+
+        State(@Nullable Uri uri, boolean prepared, boolean playing, boolean looping,
+              long duration, int handOffCount, boolean suspended) {
+            this.uri = uri;
+            this.prepared = prepared;
+            this.playing = playing;
+            this.looping = looping;
+            this.duration = duration;
+            this.handOffCount = handOffCount;
+            this.suspended = suspended;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof State)) {
+                return false;
+            }
+            final State state = (State) o;
+            return prepared == state.prepared && playing == state.playing
+                    && looping == state.looping && duration == state.duration
+                    && handOffCount == state.handOffCount && suspended == state.suspended
+                    && Objects.equals(uri, state.uri);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(
+                    uri, prepared, playing, looping, duration, handOffCount, suspended
+            );
+        }
+    }
+
+    private static final class Command {
+        final int type;
+
+        @Nullable
+        final Object arg;
+
+        final long value;
+
+        Command(int type, @Nullable Object arg, long value) {
+            this.type = type;
+            this.arg = arg;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.obby.android.audioplayer;
+
+import android.media.MediaPlayer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.IOException;
+
+/**
+ * Decodes and renders one source for {@link PlaybackController}. The calls and their states
+ * follow {@link MediaPlayer}: set a source, prepare, then start, pause, seek and reset.
+ * Listener callbacks are delivered on the thread that created the engine.
+ */
+interface PlaybackEngine {
+    void setListener(@Nullable Listener listener);
+
+    /**
+     * Sets the source to play, blocking while it is opened.
+     */
+    void setDataSource(@NonNull SourceResolver.Source source) throws IOException;
+
+    void prepareAsync();
+
+    void start();
+
+    void pause();
+
+    boolean isPlaying();
+
+    void setLooping(boolean looping);
+
+    boolean isLooping();
+
+    /**
+     * Limits looping to the range from {@code startMs} to {@code endMs}, where a negative
+     * value stands for the start or the end of the source.
+     */
+    void setLoopRange(long startMs, long endMs);
+
+    /**
+     * Whether looping wraps around without a gap and keeps to the loop range. Sources are
+     * moved to an engine created for looping before they loop otherwise.
+     */
+    boolean supportsSeamlessLooping();
+
+    /**
+     * Seeks with one of the {@code MediaPlayer.SEEK_*} modes.
+     */
+    void seekTo(long positionMs, int mode);
+
+    long getDuration();
+
+    long getCurrentPosition();
+
+    /**
+     * Anchors {@code clock} to the latest position the output reported, returning
+     * {@code false} when there is none yet.
+     */
+    boolean anchor(@NonNull PlaybackClock clock);
+
+    /**
+     * Sets the engine that is started as soon as this one completes, or {@code null}.
+     */
+    void setNextEngine(@Nullable PlaybackEngine next);
+
+    /**
+     * Names the path the audio takes to the output, for diagnostics.
+     */
+    @NonNull
+    String getOutputPath();
+
+    /**
+     * Whether playing keeps the CPU awake, which offloaded playback does not need.
+     */
+    boolean holdsWakeLock();
+
+    /**
+     * Tells why the output is not offloaded, for diagnostics, or returns {@code null} while
+     * it is.
+     */
+    @Nullable
+    String getNoOffloadReason();
+
+    /**
+     * Returns to the idle state. The source is no longer read once this returns.
+     */
+    void reset();
+
+    void release();
+
+    interface Listener {
+        void onPrepared(@NonNull PlaybackEngine engine);
+
+        void onCompletion(@NonNull PlaybackEngine engine);
+
+        void onSeekComplete(@NonNull PlaybackEngine engine);
+
+        void onMediaTimeDiscontinuity(@NonNull PlaybackEngine engine, long mediaTimeUs,
+                                      long systemNanoTime, float rate);
+
+        void onError(@NonNull PlaybackEngine engine);
+    }
+
+    interface Factory {
+        /**
+         * Creates an engine whose callbacks are delivered on the calling thread. With
+         * {@code looping} set it is to loop its source, seamlessly if it can.
+         */
+        @WorkerThread
+        @NonNull
+        PlaybackEngine create(boolean looping);
+    }
+}
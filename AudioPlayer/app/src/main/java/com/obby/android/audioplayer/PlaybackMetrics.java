@@ -0,0 +1,185 @@
+package com.obby.android.audioplayer;
+
+import android.os.SystemClock;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the running player. They are striped {@link LongAdder}s, so recording from
+ * the main, playback and frame paths never contends and can stay on in release builds.
+ */
+final class PlaybackMetrics {
+    static final int COUNTER_PLAYBACK_UPDATES = 0;
+
+    static final int COUNTER_NOTIFICATION_REQUESTS = 1;
+
+    static final int COUNTER_NOTIFICATION_POSTS = 2;
+
+    static final int COUNTER_WINDOW_UPDATES = 3;
+
+    static final int COUNTER_WINDOW_FRAMES = 4;
+
+    static final int COUNTER_TIMELINE_TICKS = 5;
+
+    static final int COUNTER_FOCUS_GAINS = 6;
+
+    static final int COUNTER_FOCUS_LOSSES = 7;
+
+    static final int COUNTER_FOCUS_TRANSIENT_LOSSES = 8;
+
+    static final int COUNTER_CLIP_HITS = 9;
+
+    static final int COUNTER_CLIP_DECODES = 10;
+
+    @IntDef({
+            COUNTER_PLAYBACK_UPDATES, COUNTER_NOTIFICATION_REQUESTS, COUNTER_NOTIFICATION_POSTS,
+            COUNTER_WINDOW_UPDATES, COUNTER_WINDOW_FRAMES, COUNTER_TIMELINE_TICKS,
+            COUNTER_FOCUS_GAINS, COUNTER_FOCUS_LOSSES, COUNTER_FOCUS_TRANSIENT_LOSSES,
+            COUNTER_CLIP_HITS, COUNTER_CLIP_DECODES
+    })
+    @Retention(RetentionPolicy.SOURCE)
+    @interface Counter {
+    }
+
+    private static final String[] COUNTER_NAMES = {
+            "playbackUpdates", "notificationRequests", "notificationPosts", "windowUpdates",
+            "windowFrames", "timelineTicks", "focusGains", "focusLosses", "focusTransientLosses",
+            "clipHits", "clipDecodes"
+    };
+
+    private static final int PLAYER_CALL_SAMPLE_COUNT = 256;
+
+    private static final LongAdder[] COUNTERS = new LongAdder[COUNTER_NAMES.length];
+
+    private static final LatencyHistogram PLAYER_CALLS =
+            new LatencyHistogram(PLAYER_CALL_SAMPLE_COUNT);
+
+    private static final Stopwatch TICKING = new Stopwatch();
+
+    private static final Stopwatch WAKE_LOCK = new Stopwatch();
+
+    private static final AtomicReference<String> PLAYBACK_PATH = new AtomicReference<>("none");
+
+    private static final AtomicReference<String> NO_OFFLOAD_REASON =
+            new AtomicReference<>("nothing played");
+
+    static {
+        for (int i = 0; i < COUNTERS.length; i++) {
+            COUNTERS[i] = new LongAdder();
+        }
+    }
+
+    private PlaybackMetrics() {
+    }
+
+    @AnyThread
+    static void increment(@Counter final int counter) {
+        COUNTERS[counter].increment();
+    }
+
+    /**
+     * Returns the start time to pass to {@link #endPlayerCall}.
+     */
+    @AnyThread
+    static long beginPlayerCall() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    @AnyThread
+    static void endPlayerCall(final long startNanos) {
+        PLAYER_CALLS.record(SystemClock.elapsedRealtimeNanos() - startNanos);
+    }
+
+    @AnyThread
+    static void setTicking(final boolean ticking) {
+        TICKING.set(ticking);
+    }
+
+    /**
+     * The player holds its wake lock while it is playing, unless its output is offloaded.
+     */
+    @AnyThread
+    static void setWakeLockHeld(final boolean held) {
+        WAKE_LOCK.set(held);
+    }
+
+    @AnyThread
+    static void setPlaybackPath(@NonNull final String path) {
+        PLAYBACK_PATH.set(path);
+    }
+
+    /**
+     * Records why the output is not offloaded, {@code null} meaning that it is.
+     */
+    @AnyThread
+    static void setNoOffloadReason(@Nullable final String reason) {
+        NO_OFFLOAD_REASON.set(reason);
+    }
+
+    static void dump(@NonNull final PrintWriter writer) {
+        writer.println("Playback metrics:");
+        for (int i = 0; i < COUNTERS.length; i++) {
+            writer.printf(Locale.US, "  %-22s %d%n", COUNTER_NAMES[i], COUNTERS[i].sum());
+        }
+
+        final double tickingSeconds = toSeconds(TICKING.getTotal());
+        writer.printf(
+                Locale.US, "  %-22s %.1f/s over %.1fs%n", "timelineTickRate",
+                tickingSeconds > 0.0
+                        ? COUNTERS[COUNTER_TIMELINE_TICKS].sum() / tickingSeconds : 0.0,
+                tickingSeconds
+        );
+        writer.printf(
+                Locale.US, "  %-22s %.1fs%n", "wakeLockHeld", toSeconds(WAKE_LOCK.getTotal())
+        );
+        writer.printf(Locale.US, "  %-22s %s%n", "playbackPath", PLAYBACK_PATH.get());
+        final String noOffloadReason = NO_OFFLOAD_REASON.get();
+        writer.printf(
+                Locale.US, "  %-22s %s%n", "offload",
+                noOffloadReason == null ? "active" : "inactive, " + noOffloadReason
+        );
+        PLAYER_CALLS.dump(writer, "playerCalls");
+    }
+
+    private static double toSeconds(final long nanos) {
+        return nanos / (double) TimeUnit.SECONDS.toNanos(1L);
+    }
+
+    /**
+     * Accumulates the time something is on, including the run in progress.
+     */
+    private static final class Stopwatch {
+        private final AtomicLong mSince = new AtomicLong();
+
+        private final LongAdder mTotal = new LongAdder();
+
+        void set(final boolean on) {
+            final long now = SystemClock.elapsedRealtimeNanos();
+            if (on) {
+                mSince.compareAndSet(0L, now);
+            } else {
+                final long since = mSince.getAndSet(0L);
+                if (since != 0L) {
+                    mTotal.add(now - since);
+                }
+            }
+        }
+
+        long getTotal() {
+            final long since = mSince.get();
+            return mTotal.sum() + (since == 0L ? 0L : SystemClock.elapsedRealtimeNanos() - since);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.obby.android.audioplayer;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+
+/**
+ * Ordered sources with a current position. Entries are kept as uri strings and parsed on
+ * access, and every change is written to a file in the background so the queue survives
+ * service restarts. Restoring reads the file on the same background thread.
+ */
+final class PlaybackQueue {
+    private static final int FILE_VERSION = 1;
+
+    private final File mFile;
+
+    private final ExecutorService mExecutorService = Executors.newSingleThreadExecutor();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final ArrayList<String> mEntries = new ArrayList<>();
+
+    private int mIndex;
+
+    private boolean mIsRestored;
+
+    private boolean mIsReplaced;
+
+    PlaybackQueue(@NonNull final File file) {
+        mFile = file;
+    }
+
+    /**
+     * Reads the queue written by a previous instance in the background, keeping the
+     * entries {@code filter} accepts, then runs {@code callback} on the main thread.
+     * Entries appended meanwhile follow the restored ones, a replace meanwhile wins.
+     */
+    @MainThread
+    void restore(@NonNull final Predicate<Uri> filter, @NonNull final Runnable callback) {
+        mExecutorService.execute(() -> {
+            final ArrayList<String> entries = new ArrayList<>();
+            final int index = read(filter, entries);
+            mMainHandler.post(() -> {
+                if (mExecutorService.isShutdown()) {
+                    return;
+                }
+                mIsRestored = true;
+                if (!mIsReplaced && !entries.isEmpty()) {
+                    mEntries.addAll(0, entries);
+                    mIndex = index;
+                    save();
+                }
+                callback.run();
+            });
+        });
+    }
+
+    @MainThread
+    boolean isRestored() {
+        return mIsRestored;
+    }
+
+    @MainThread
+    void replace(@NonNull final List<Uri> uris) {
+        mIsReplaced = true;
+        mEntries.clear();
+        mIndex = 0;
+        append(uris);
+    }
+
+    @MainThread
+    void append(@NonNull final List<Uri> uris) {
+        mEntries.ensureCapacity(mEntries.size() + uris.size());
+        for (final Uri uri : uris) {
+            mEntries.add(uri.toString());
+        }
+        save();
+    }
+
+    @MainThread
+    @Nullable
+    Uri getCurrent() {
+        return peek(0);
+    }
+
+    /**
+     * Returns the entry {@code offset} positions after the current one.
+     */
+    @MainThread
+    @Nullable
+    Uri peek(final int offset) {
+        final int index = mIndex + offset;
+        return index >= 0 && index < mEntries.size() ? Uri.parse(mEntries.get(index)) : null;
+    }
+
+    /**
+     * Returns whether there was a next entry to move to.
+     */
+    @MainThread
+    boolean moveToNext() {
+        if (mIndex + 1 >= mEntries.size()) {
+            return false;
+        }
+        mIndex++;
+        save();
+        return true;
+    }
+
+    @MainThread
+    void shutdown() {
+        // Let the last write finish
+        mExecutorService.shutdown();
+    }
+
+    /**
+     * Reads the accepted entries into {@code entries} and returns the index of the current
+     * one. When the current entry was dropped, the one after it becomes current.
+     */
+    @WorkerThread
+    private int read(@NonNull final Predicate<Uri> filter,
+                     @NonNull final List<String> entries) {
+        if (!mFile.isFile()) {
+            return 0;
+        }
+
+        try (final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)))) {
+            if (in.readInt() != FILE_VERSION) {
+                return 0;
+            }
+            final int index = in.readInt();
+            final int size = in.readInt();
+            int restoredIndex = 0;
+            for (int i = 0; i < size; i++) {
+                final String entry = in.readUTF();
+                if (i == index) {
+                    restoredIndex = entries.size();
+                }
+                if (filter.test(Uri.parse(entry))) {
+                    entries.add(entry);
+                }
+            }
+            return restoredIndex < entries.size() ? restoredIndex : 0;
+        } catch (IOException e) {
+            entries.clear();
+            return 0;
+        }
+    }
+
+    @MainThread
+    private void save() {
+        final String[] entries = mEntries.toArray(new String[0]);
+        final int index = mIndex;
+        mExecutorService.execute(() -> write(entries, index));
+    }
+
+    @WorkerThread
+    private void write(@NonNull final String[] entries, final int index) {
+        final File tempFile = new File(mFile.getPath() + ".tmp");
+        try (final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(FILE_VERSION);
+            out.writeInt(index);
+            out.writeInt(entries.length);
+            for (final String entry : entries) {
+                out.writeUTF(entry);
+            }
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            return;
+        }
+        if (!tempFile.renameTo(mFile)) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+        }
+    }
+}
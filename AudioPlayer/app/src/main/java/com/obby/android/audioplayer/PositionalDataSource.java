@@ -0,0 +1,68 @@
+package com.obby.android.audioplayer;
+
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaDataSource;
+
+import androidx.annotation.NonNull;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Media data source reading a shared descriptor with positional reads only. Its reads
+ * never move the file offset, so another reader of the same descriptor, such as the player,
+ * is not disturbed and does not disturb it.
+ * <p>
+ * The descriptor stays owned by the caller and is never closed here.
+ */
+final class PositionalDataSource extends MediaDataSource {
+    private final FileChannel mChannel;
+
+    private final long mStartOffset;
+
+    private final long mSize;
+
+    PositionalDataSource(@NonNull final AssetFileDescriptor descriptor) {
+        mChannel = new FileInputStream(descriptor.getFileDescriptor()).getChannel();
+        mStartOffset = descriptor.getStartOffset();
+        mSize = querySize(descriptor);
+    }
+
+    @Override
+    public int readAt(final long position, final byte[] buffer, final int offset, final int size)
+            throws IOException {
+        if (size == 0) {
+            return 0;
+        }
+        if (position < 0L || (mSize >= 0L && position >= mSize)) {
+            return -1;
+        }
+
+        final int length = mSize < 0L ? size : (int) Math.min(size, mSize - position);
+        return mChannel.read(ByteBuffer.wrap(buffer, offset, length), mStartOffset + position);
+    }
+
+    @Override
+    public long getSize() {
+        return mSize;
+    }
+
+    @Override
+    public void close() {
+        // The channel is the caller's descriptor, closing it would close that
+    }
+
+    private long querySize(@NonNull final AssetFileDescriptor descriptor) {
+        final long declaredLength = descriptor.getDeclaredLength();
+        if (declaredLength >= 0L) {
+            return declaredLength;
+        }
+        try {
+            return Math.max(-1L, mChannel.size() - mStartOffset);
+        } catch (IOException e) {
+            return -1L;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package com.obby.android.audioplayer;
+
+import android.media.MediaDataSource;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Media data source for slow providers. A read-ahead thread fetches fixed size blocks
+ * sequentially from the last position the player asked for into a bounded in-memory ring,
+ * and blocks pushed out of it are spilled to a sparse cache file, so seeks back into
+ * already read data never go to the provider again.
+ * <p>
+ * The upstream source stays owned by the caller and is never closed here.
+ */
+final class ReadAheadDataSource extends MediaDataSource {
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final int MAX_MEMORY_BLOCKS = 32;
+
+    private static final int READ_AHEAD_BLOCKS = 16;
+
+    private static final long MAX_SPILL_BYTES = 64L * 1024 * 1024;
+
+    private final MediaDataSource mUpstream;
+
+    private final long mSize;
+
+    private final LinkedHashMap<Integer, byte[]> mBlocks =
+            new LinkedHashMap<>(MAX_MEMORY_BLOCKS, 0.75f, true);
+
+    private final BitSet mSpilledBlocks = new BitSet();
+
+    private final File mSpillFile;
+
+    private RandomAccessFile mSpill;
+
+    private int mWantedBlock;
+
+    private int mEndBlock = Integer.MAX_VALUE;
+
+    private IOException mError;
+
+    private boolean mClosed;
+
+    ReadAheadDataSource(@NonNull final MediaDataSource upstream,
+                        @Nullable final File spillDirectory) throws IOException {
+        mUpstream = upstream;
+        mSize = upstream.getSize();
+        if (mSize >= 0L) {
+            mEndBlock = (int) ((mSize + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        }
+
+        // Spill evicted blocks to a sparse file when there is somewhere to put it
+        File spillFile = null;
+        RandomAccessFile spill = null;
+        if (spillDirectory != null
+                && (spillDirectory.isDirectory() || spillDirectory.mkdirs())) {
+            try {
+                spillFile = File.createTempFile("readahead", null, spillDirectory);
+                spill = new RandomAccessFile(spillFile, "rw");
+            } catch (IOException e) {
+                if (spillFile != null) {
+                    //noinspection ResultOfMethodCallIgnored
+                    spillFile.delete();
+                    spillFile = null;
+                }
+            }
+        }
+        mSpillFile = spillFile;
+        mSpill = spill;
+
+        final Thread readAheadThread = new Thread(this::readAhead, "ReadAhead");
+        readAheadThread.setDaemon(true);
+        readAheadThread.start();
+    }
+
+    @Override
+    public int readAt(final long position, final byte[] buffer, final int offset, final int size)
+            throws IOException {
+        if (size == 0) {
+            return 0;
+        }
+        if (position < 0L || (mSize >= 0L && position >= mSize)) {
+            return -1;
+        }
+
+        final int block = (int) (position / BLOCK_SIZE);
+        final int blockOffset = (int) (position % BLOCK_SIZE);
+        synchronized (this) {
+            // Move the read-ahead window to where the player is reading
+            if (mWantedBlock != block) {
+                mWantedBlock = block;
+                notifyAll();
+            }
+
+            byte[] data;
+            while ((data = getBlock(block)) == null) {
+                if (mClosed) {
+                    throw new IOException("Data source is closed");
+                }
+                if (mError != null) {
+                    throw mError;
+                }
+                if (block >= mEndBlock) {
+                    return -1;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+
+            if (blockOffset >= data.length) {
+                return -1;
+            }
+            final int length = Math.min(size, data.length - blockOffset);
+            System.arraycopy(data, blockOffset, buffer, offset, length);
+            return length;
+        }
+    }
+
+    @Override
+    public long getSize() {
+        return mSize;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mBlocks.clear();
+            notifyAll();
+
+            // The read-ahead thread is not interrupted, it may be inside an upstream read
+            if (mSpill != null) {
+                try {
+                    mSpill.close();
+                } catch (IOException ignored) {
+                    // Deleted below anyway
+                }
+                mSpill = null;
+                //noinspection ResultOfMethodCallIgnored
+                mSpillFile.delete();
+            }
+        }
+    }
+
+    @WorkerThread
+    private void readAhead() {
+        while (true) {
+            final int block;
+            synchronized (this) {
+                int missingBlock = -1;
+                while (!mClosed && (missingBlock = findMissingBlock()) < 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mClosed) {
+                    return;
+                }
+                block = missingBlock;
+            }
+
+            // Read outside the lock so cached blocks can be served meanwhile
+            byte[] data = null;
+            IOException error = null;
+            try {
+                data = readBlock(block);
+            } catch (IOException e) {
+                error = e;
+            }
+
+            synchronized (this) {
+                if (error != null) {
+                    mError = error;
+                } else if (data == null) {
+                    mEndBlock = Math.min(mEndBlock, block);
+                } else {
+                    if (data.length < BLOCK_SIZE) {
+                        mEndBlock = Math.min(mEndBlock, block + 1);
+                    }
+                    putBlock(block, data);
+                }
+                notifyAll();
+                if (mError != null) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the first block of the read-ahead window that is neither cached nor past the
+     * end, or -1 when the window is complete.
+     */
+    private int findMissingBlock() {
+        final int end = Math.min(mEndBlock, mWantedBlock + READ_AHEAD_BLOCKS);
+        for (int block = mWantedBlock; block < end; block++) {
+            if (!mBlocks.containsKey(block) && !mSpilledBlocks.get(block)) {
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    @WorkerThread
+    @Nullable
+    private byte[] readBlock(final int block) throws IOException {
+        final byte[] buffer = new byte[BLOCK_SIZE];
+        final long position = (long) block * BLOCK_SIZE;
+        int length = 0;
+        while (length < BLOCK_SIZE) {
+            final int read = mUpstream.readAt(
+                    position + length, buffer, length, BLOCK_SIZE - length
+            );
+            if (read <= 0) {
+                break;
+            }
+            length += read;
+        }
+        if (length == 0) {
+            return null;
+        }
+        if (length == BLOCK_SIZE) {
+            return buffer;
+        }
+        final byte[] data = new byte[length];
+        System.arraycopy(buffer, 0, data, 0, length);
+        return data;
+    }
+
+    @Nullable
+    private byte[] getBlock(final int block) {
+        final byte[] data = mBlocks.get(block);
+        if (data != null || !mSpilledBlocks.get(block) || mSpill == null) {
+            return data;
+        }
+
+        // Bring the spilled block back into memory
+        final int length = block + 1 == mEndBlock && mSize >= 0L
+                ? (int) (mSize - (long) block * BLOCK_SIZE) : BLOCK_SIZE;
+        final byte[] spilled = new byte[length];
+        try {
+            mSpill.seek((long) block * BLOCK_SIZE);
+            mSpill.readFully(spilled);
+        } catch (IOException e) {
+            mSpilledBlocks.clear(block);
+            return null;
+        }
+        putBlock(block, spilled);
+        return spilled;
+    }
+
+    private void putBlock(final int block, @NonNull final byte[] data) {
+        if (mClosed) {
+            return;
+        }
+
+        mBlocks.put(block, data);
+        final Iterator<Map.Entry<Integer, byte[]>> iterator = mBlocks.entrySet().iterator();
+        while (mBlocks.size() > MAX_MEMORY_BLOCKS && iterator.hasNext()) {
+            final Map.Entry<Integer, byte[]> entry = iterator.next();
+            iterator.remove();
+            spillBlock(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void spillBlock(final int block, @NonNull final byte[] data) {
+        final long position = (long) block * BLOCK_SIZE;
+        if (mSpill == null || mSpilledBlocks.get(block) || position >= MAX_SPILL_BYTES
+                || (data.length < BLOCK_SIZE && mSize < 0L)) {
+            return;
+        }
+
+        try {
+            mSpill.seek(position);
+            mSpill.write(data);
+            mSpilledBlocks.set(block);
+        } catch (IOException ignored) {
+            // Read it from the provider again when needed
+        }
+    }
+}
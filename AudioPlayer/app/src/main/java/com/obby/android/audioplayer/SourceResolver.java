@@ -0,0 +1,378 @@
+package com.obby.android.audioplayer;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.media.MediaDataSource;
+import android.media.MediaExtractor;
+import android.media.MediaMetadataRetriever;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.LruCache;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Opens each source once for everyone reading it. A resolved source holds one
+ * {@link AssetFileDescriptor} that players, extractors and the metadata retriever share
+ * through positional reads, so none of them moves the file offset another reads at, and is
+ * closed when the last of them releases it. The provider columns are cached per uri so
+ * they are only queried once.
+ */
+final class SourceResolver {
+    private static final int INFO_CACHE_MAX_ENTRIES = 64;
+
+    private static final String MEDIA_DOCUMENTS_AUTHORITY = "com.android.providers.media.documents";
+
+    private final Context mContext;
+
+    private final HashMap<Uri, Source> mSources = new HashMap<>();
+
+    private final LruCache<Uri, Info> mInfoCache = new LruCache<>(INFO_CACHE_MAX_ENTRIES);
+
+    private final File mSpillDirectory;
+
+    private final AtomicBoolean mSpillDirectoryCleared = new AtomicBoolean();
+
+    SourceResolver(@NonNull final Context context) {
+        mContext = context.getApplicationContext();
+        mSpillDirectory = new File(mContext.getCacheDir(), "readahead");
+    }
+
+    /**
+     * Returns the resolved source for a uri, shared with anyone already holding it.
+     * Every call must be paired with {@link #release}.
+     */
+    @WorkerThread
+    @NonNull
+    Source resolve(@NonNull final Uri uri) {
+        final Source source;
+        synchronized (mSources) {
+            Source existing = mSources.get(uri);
+            if (existing == null) {
+                existing = new Source(uri);
+                mSources.put(uri, existing);
+            }
+            existing.mRefCount++;
+            source = existing;
+        }
+
+        // Query outside the map lock so unrelated sources do not wait on each other
+        source.resolveInfo();
+        return source;
+    }
+
+    /**
+     * Returns the display name of a uri if it is already known, without querying the
+     * provider, e.g. for a placeholder title on the main thread.
+     */
+    @AnyThread
+    @Nullable
+    String peekDisplayName(@NonNull final Uri uri) {
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+            return uri.getLastPathSegment();
+        }
+        final Info info = mInfoCache.get(uri);
+        return info == null ? null : info.displayName;
+    }
+
+    /**
+     * Returns whether the uri can still be opened, e.g. whether the grant it was shared
+     * with outlived the process that received it.
+     */
+    @WorkerThread
+    boolean isReadable(@NonNull final Uri uri) {
+        final AssetFileDescriptor descriptor = openDescriptor(uri);
+        if (descriptor == null) {
+            return false;
+        }
+        try {
+            descriptor.close();
+        } catch (IOException ignored) {
+            // Opening was the check
+        }
+        return true;
+    }
+
+    void release(@Nullable final Source source) {
+        if (source == null) {
+            return;
+        }
+
+        synchronized (mSources) {
+            if (--source.mRefCount > 0) {
+                return;
+            }
+            mSources.remove(source.uri);
+        }
+        source.close();
+    }
+
+    @WorkerThread
+    @NonNull
+    private Info queryInfo(@NonNull final Uri uri) {
+        final Info cachedInfo = mInfoCache.get(uri);
+        if (cachedInfo != null) {
+            return cachedInfo;
+        }
+
+        final Info info = queryInfoUncached(uri);
+        mInfoCache.put(uri, info);
+        return info;
+    }
+
+    @WorkerThread
+    @NonNull
+    private Info queryInfoUncached(@NonNull final Uri uri) {
+        final String scheme = uri.getScheme();
+
+        if (ContentResolver.SCHEME_FILE.equals(scheme)) {
+            final File file = new File(Objects.requireNonNull(uri.getPath()));
+            return new Info(uri.getLastPathSegment(), file.lastModified(), file.length());
+        } else if (ContentResolver.SCHEME_CONTENT.equals(scheme)) {
+            try (Cursor cursor = mContext.getContentResolver()
+                    .query(uri, null, null, null, null)) {
+                if (cursor != null && cursor.moveToFirst()) {
+                    final int displayNameIndex =
+                            cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
+                    final int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+                    final int lastModifiedIndex =
+                            cursor.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+                    final int dateModifiedIndex =
+                            cursor.getColumnIndex(MediaStore.MediaColumns.DATE_MODIFIED);
+
+                    final String displayName = displayNameIndex < 0
+                            ? null : cursor.getString(displayNameIndex);
+                    final long size = sizeIndex < 0 || cursor.isNull(sizeIndex)
+                            ? 0L : cursor.getLong(sizeIndex);
+                    long lastModified = 0L;
+                    if (lastModifiedIndex >= 0 && !cursor.isNull(lastModifiedIndex)) {
+                        lastModified = cursor.getLong(lastModifiedIndex);
+                    } else if (dateModifiedIndex >= 0 && !cursor.isNull(dateModifiedIndex)) {
+                        lastModified = TimeUnit.SECONDS.toMillis(
+                                cursor.getLong(dateModifiedIndex)
+                        );
+                    }
+                    return new Info(
+                            displayName == null ? uri.toString() : displayName,
+                            lastModified,
+                            size
+                    );
+                }
+            } catch (RuntimeException ignored) {
+                // Provider went away, fall back to the uri
+            }
+        }
+
+        return new Info(uri.toString(), 0L, 0L);
+    }
+
+    @WorkerThread
+    @Nullable
+    private AssetFileDescriptor openDescriptor(@NonNull final Uri uri) {
+        try {
+            if (ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+                return new AssetFileDescriptor(
+                        ParcelFileDescriptor.open(
+                                new File(Objects.requireNonNull(uri.getPath())),
+                                ParcelFileDescriptor.MODE_READ_ONLY
+                        ),
+                        0L,
+                        AssetFileDescriptor.UNKNOWN_LENGTH
+                );
+            }
+            return mContext.getContentResolver().openAssetFileDescriptor(uri, "r");
+        } catch (FileNotFoundException | RuntimeException e) {
+            // Let the consumers open the uri themselves
+            return null;
+        }
+    }
+
+    /**
+     * Returns the directory read-ahead sources spill to, cleared of files left behind by a
+     * previous process on first use.
+     */
+    @WorkerThread
+    @NonNull
+    private File getSpillDirectory() {
+        if (mSpillDirectoryCleared.compareAndSet(false, true)) {
+            final File[] files = mSpillDirectory.listFiles();
+            if (files != null) {
+                for (final File file : files) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        }
+        return mSpillDirectory;
+    }
+
+    /**
+     * Returns whether the uri is served from local storage, where reading ahead does not
+     * pay for its thread and buffer.
+     */
+    private static boolean isLocal(@NonNull final Uri uri) {
+        return ContentResolver.SCHEME_FILE.equals(uri.getScheme())
+                || MediaStore.AUTHORITY.equals(uri.getAuthority())
+                || MEDIA_DOCUMENTS_AUTHORITY.equals(uri.getAuthority());
+    }
+
+    private static boolean isSeekable(@NonNull final AssetFileDescriptor descriptor) {
+        try {
+            Os.lseek(descriptor.getFileDescriptor(), 0L, OsConstants.SEEK_CUR);
+            return true;
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    private static final class Info {
+        @NonNull
+        final String displayName;
+
+        final long lastModified;
+
+        final long size;
+
+        Info(@NonNull String displayName, long lastModified, long size) {
+            this.displayName = displayName;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+    }
+
+    final class Source {
+        @NonNull
+        final Uri uri;
+
+        // Guarded by mSources
+        private int mRefCount;
+
+        private boolean mDescriptorOpened;
+
+        private AssetFileDescriptor mDescriptor;
+
+        private Info mInfo;
+
+        private Source(@NonNull Uri uri) {
+            this.uri = uri;
+        }
+
+        @NonNull
+        synchronized String getDisplayName() {
+            return mInfo.displayName;
+        }
+
+        @Nullable
+        synchronized String getCacheKey() {
+            return mInfo.lastModified <= 0L
+                    ? null : uri + "@" + mInfo.lastModified + ":" + mInfo.size;
+        }
+
+        /**
+         * Sets this source as the data source of a player, sharing the open descriptor.
+         * Seekable sources from providers that are not local storage are read through a
+         * {@link ReadAheadDataSource}.
+         */
+        @WorkerThread
+        void setDataSource(@NonNull final MediaPlayer mediaPlayer) throws IOException {
+            final AssetFileDescriptor descriptor = getDescriptor();
+            if (descriptor != null && isSeekable(descriptor)) {
+                mediaPlayer.setDataSource(createDataSource(descriptor));
+            } else {
+                mediaPlayer.setDataSource(mContext, uri);
+            }
+        }
+
+        /**
+         * Sets this source as the data source of an extractor, the same way as for a player.
+         */
+        @WorkerThread
+        void setDataSource(@NonNull final MediaExtractor extractor) throws IOException {
+            final AssetFileDescriptor descriptor = getDescriptor();
+            if (descriptor != null && isSeekable(descriptor)) {
+                extractor.setDataSource(createDataSource(descriptor));
+            } else {
+                extractor.setDataSource(mContext, uri, null);
+            }
+        }
+
+        /**
+         * Sets this source as the data source of a retriever, sharing the open descriptor.
+         */
+        @WorkerThread
+        void setDataSource(@NonNull final MediaMetadataRetriever retriever) {
+            final AssetFileDescriptor descriptor = getDescriptor();
+            if (descriptor != null && isSeekable(descriptor)) {
+                retriever.setDataSource(new PositionalDataSource(descriptor));
+            } else {
+                retriever.setDataSource(mContext, uri);
+            }
+        }
+
+        /**
+         * Reads the shared descriptor by position, so consumers of the same source, such as
+         * the current and the next player, never race on its file offset. A stream
+         * descriptor has a single offset and cannot be shared, every consumer opens its own.
+         */
+        @WorkerThread
+        @NonNull
+        private MediaDataSource createDataSource(@NonNull final AssetFileDescriptor descriptor)
+                throws IOException {
+            final MediaDataSource dataSource = new PositionalDataSource(descriptor);
+            return isLocal(uri)
+                    ? dataSource : new ReadAheadDataSource(dataSource, getSpillDirectory());
+        }
+
+        @WorkerThread
+        private synchronized void resolveInfo() {
+            if (mInfo == null) {
+                mInfo = queryInfo(uri);
+            }
+        }
+
+        /**
+         * Opens the descriptor on first use, so sources served from the metadata cache are
+         * never opened.
+         */
+        @WorkerThread
+        @Nullable
+        private synchronized AssetFileDescriptor getDescriptor() {
+            if (!mDescriptorOpened) {
+                mDescriptorOpened = true;
+                mDescriptor = openDescriptor(uri);
+            }
+            return mDescriptor;
+        }
+
+        private synchronized void close() {
+            if (mDescriptor != null) {
+                try {
+                    mDescriptor.close();
+                } catch (IOException ignored) {
+                    // Nothing left to do with it
+                }
+                mDescriptor = null;
+            }
+        }
+    }
+}
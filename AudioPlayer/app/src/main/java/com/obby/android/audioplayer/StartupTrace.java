@@ -0,0 +1,146 @@
+package com.obby.android.audioplayer;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+
+import java.io.PrintWriter;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Phase timing of the path from opening a file to hearing it. Every phase is a trace
+ * section for systrace and Perfetto, and its duration goes into a histogram over the
+ * last {@link #SAMPLE_COUNT} opens that {@code dumpsys activity service} prints.
+ */
+final class StartupTrace {
+    /**
+     * {@code MainActivity.onCreate} until the service is started.
+     */
+    static final int PHASE_ACTIVITY = 0;
+
+    /**
+     * Starting the service until its {@code onStartCommand}.
+     */
+    static final int PHASE_SERVICE_LAUNCH = 1;
+
+    /**
+     * {@code AudioPlayerService.onCreate}.
+     */
+    static final int PHASE_SERVICE_CREATE = 2;
+
+    /**
+     * Metadata extraction, or the cache lookup that replaces it.
+     */
+    static final int PHASE_METADATA = 3;
+
+    /**
+     * Opening the source and {@code prepareAsync} until the player is prepared.
+     */
+    static final int PHASE_PREPARE = 4;
+
+    /**
+     * Audio focus request and {@code MediaPlayer.start}.
+     */
+    static final int PHASE_START = 5;
+
+    /**
+     * {@code MainActivity.onCreate} until playback is reported as started.
+     */
+    static final int PHASE_FIRST_AUDIO = 6;
+
+    @IntDef({
+            PHASE_ACTIVITY, PHASE_SERVICE_LAUNCH, PHASE_SERVICE_CREATE, PHASE_METADATA,
+            PHASE_PREPARE, PHASE_START, PHASE_FIRST_AUDIO
+    })
+    @Retention(RetentionPolicy.SOURCE)
+    @interface Phase {
+    }
+
+    private static final int SAMPLE_COUNT = 64;
+
+    private static final String[] PHASE_NAMES = {
+            "activity", "serviceLaunch", "serviceCreate", "metadata", "prepare", "start",
+            "firstAudio"
+    };
+
+    private static final String[] SECTION_NAMES = new String[PHASE_NAMES.length];
+
+    private static final LatencyHistogram[] HISTOGRAMS = new LatencyHistogram[PHASE_NAMES.length];
+
+    static {
+        for (int i = 0; i < PHASE_NAMES.length; i++) {
+            SECTION_NAMES[i] = "AudioPlayer:" + PHASE_NAMES[i];
+            HISTOGRAMS[i] = new LatencyHistogram(SAMPLE_COUNT);
+        }
+    }
+
+    private StartupTrace() {
+    }
+
+    /**
+     * Time base of all phases, comparable across components of the process.
+     */
+    @AnyThread
+    static long now() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Begins a phase that starts and ends on the calling thread.
+     */
+    @AnyThread
+    static long begin(@Phase final int phase) {
+        Trace.beginSection(SECTION_NAMES[phase]);
+        return now();
+    }
+
+    /**
+     * Ends a phase, recording it unless {@code startNanos} is 0, e.g. for superseded work.
+     */
+    @AnyThread
+    static void end(@Phase final int phase, final long startNanos) {
+        Trace.endSection();
+        record(phase, startNanos);
+    }
+
+    /**
+     * Begins a phase that may end on another thread.
+     */
+    @AnyThread
+    static long beginAsync(@Phase final int phase) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(SECTION_NAMES[phase], phase);
+        }
+        return now();
+    }
+
+    @AnyThread
+    static void endAsync(@Phase final int phase, final long startNanos) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection(SECTION_NAMES[phase], phase);
+        }
+        record(phase, startNanos);
+    }
+
+    /**
+     * Records a phase measured without a trace section, e.g. across components.
+     */
+    @AnyThread
+    static void record(@Phase final int phase, final long startNanos) {
+        if (startNanos > 0L) {
+            HISTOGRAMS[phase].record(now() - startNanos);
+        }
+    }
+
+    static void dump(@NonNull final PrintWriter writer) {
+        writer.println("Time to first audio, last " + SAMPLE_COUNT + " opens:");
+        for (int i = 0; i < HISTOGRAMS.length; i++) {
+            HISTOGRAMS[i].dump(writer, PHASE_NAMES[i]);
+        }
+    }
+}
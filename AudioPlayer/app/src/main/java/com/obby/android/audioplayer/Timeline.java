@@ -0,0 +1,52 @@
+package com.obby.android.audioplayer;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.MainThread;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Position and duration of the timeline, packed into one long so a tick publishes both
+ * with a single atomic swap and the frame applies them only when they changed. Neither
+ * side allocates.
+ */
+final class Timeline {
+    private final AtomicLong mPending = new AtomicLong();
+
+    private long mApplied = -1L;
+
+    /**
+     * Sets the timeline, clamped to the packable range, returning whether it changed.
+     */
+    @AnyThread
+    boolean set(final long position, final long duration) {
+        final long clampedDuration = Math.min(Math.max(0L, duration), Integer.MAX_VALUE);
+        final long clampedPosition = Math.min(Math.max(0L, position), clampedDuration);
+        final long timeline = (clampedDuration << 32) | clampedPosition;
+        return mPending.getAndSet(timeline) != timeline;
+    }
+
+    /**
+     * Takes the latest timeline for applying, returning whether it differs from the one
+     * taken before.
+     */
+    @MainThread
+    boolean take() {
+        final long timeline = mPending.get();
+        if (timeline == mApplied) {
+            return false;
+        }
+        mApplied = timeline;
+        return true;
+    }
+
+    @MainThread
+    long getPosition() {
+        return mApplied & 0xFFFFFFFFL;
+    }
+
+    @MainThread
+    long getDuration() {
+        return mApplied >>> 32;
+    }
+}
@@ -0,0 +1,102 @@
+package com.obby.android.audioplayer;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.IntDef;
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Drives timeline updates from the main thread. At most one tick is pending at any
+ * time, either on the next display frame or on the next second.
+ */
+final class TimelineTicker implements Choreographer.FrameCallback, Runnable {
+    static final int MODE_NONE = 0;
+
+    static final int MODE_SECOND = 1;
+
+    static final int MODE_FRAME = 2;
+
+    private static final long SECOND_INTERVAL_MILLIS = 1000L;
+
+    @IntDef({MODE_NONE, MODE_SECOND, MODE_FRAME})
+    @Retention(RetentionPolicy.SOURCE)
+    @interface Mode {
+    }
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final Choreographer mChoreographer;
+
+    private final Runnable mOnTick;
+
+    @Mode
+    private int mMode = MODE_NONE;
+
+    @MainThread
+    TimelineTicker(@NonNull final Runnable onTick) {
+        mChoreographer = Choreographer.getInstance();
+        mOnTick = onTick;
+    }
+
+    @AnyThread
+    void setMode(@Mode final int mode) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            mMainHandler.post(() -> setMode(mode));
+            return;
+        }
+
+        if (mMode == mode) {
+            return;
+        }
+        cancel();
+        mMode = mode;
+        PlaybackMetrics.setTicking(mode != MODE_NONE);
+        schedule();
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (mMode == MODE_FRAME) {
+            PlaybackMetrics.increment(PlaybackMetrics.COUNTER_TIMELINE_TICKS);
+            mOnTick.run();
+            schedule();
+        }
+    }
+
+    @Override
+    public void run() {
+        if (mMode == MODE_SECOND) {
+            PlaybackMetrics.increment(PlaybackMetrics.COUNTER_TIMELINE_TICKS);
+            mOnTick.run();
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        switch (mMode) {
+            case MODE_FRAME:
+                mChoreographer.postFrameCallback(this);
+                break;
+            case MODE_SECOND:
+                mMainHandler.postAtTime(
+                        this, this, SystemClock.uptimeMillis() + SECOND_INTERVAL_MILLIS
+                );
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void cancel() {
+        mChoreographer.removeFrameCallback(this);
+        mMainHandler.removeCallbacksAndMessages(this);
+    }
+}
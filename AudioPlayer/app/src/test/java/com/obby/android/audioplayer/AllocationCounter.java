@@ -0,0 +1,35 @@
+package com.obby.android.audioplayer;
+
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Counts the bytes allocated by the calling thread, on JVMs that can report it.
+ */
+final class AllocationCounter {
+    private final com.sun.management.ThreadMXBean mThreadMXBean;
+
+    private final long mThreadId = Thread.currentThread().getId();
+
+    AllocationCounter() {
+        final java.lang.management.ThreadMXBean threadMXBean =
+                ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+        mThreadMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        assumeTrue(mThreadMXBean.isThreadAllocatedMemorySupported());
+        mThreadMXBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    /**
+     * Returns the bytes {@code action} allocated, less the cost of measuring.
+     */
+    long measure(final Runnable action) {
+        final long overheadStart = mThreadMXBean.getThreadAllocatedBytes(mThreadId);
+        final long overheadEnd = mThreadMXBean.getThreadAllocatedBytes(mThreadId);
+        final long start = mThreadMXBean.getThreadAllocatedBytes(mThreadId);
+        action.run();
+        final long end = mThreadMXBean.getThreadAllocatedBytes(mThreadId);
+        return Math.max(0L, (end - start) - (overheadEnd - overheadStart));
+    }
+}
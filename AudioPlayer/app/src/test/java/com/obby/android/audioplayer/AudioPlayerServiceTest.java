@@ -0,0 +1,221 @@
+package com.obby.android.audioplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Sends the service a burst of open intents the way a file manager does and counts what the
+ * playback engine is asked to prepare.
+ */
+@RunWith(RobolectricTestRunner.class)
+public final class AudioPlayerServiceTest {
+    private static final int BURST = 100;
+
+    private static final long TIMEOUT_MILLIS = 10_000L;
+
+    /**
+     * Quiet time after the burst, long enough for a stray prepare to show up.
+     */
+    private static final long SETTLE_MILLIS = 500L;
+
+    private static final List<Uri> sPreparedUris = new CopyOnWriteArrayList<>();
+
+    private ShadowLooper mMainLooper;
+
+    private ServiceController<TestService> mServiceController;
+
+    @Before
+    public void setUp() {
+        sPreparedUris.clear();
+        mMainLooper = shadowOf(Looper.getMainLooper());
+        mServiceController = Robolectric.buildService(TestService.class).create();
+    }
+
+    @After
+    public void tearDown() {
+        mServiceController.destroy();
+    }
+
+    @Test
+    public void onStartCommand_viewBurst_preparesNewestOnce() throws InterruptedException {
+        final AudioPlayerService service = mServiceController.get();
+        for (int i = 0; i < BURST; i++) {
+            service.onStartCommand(new Intent(Intent.ACTION_VIEW, getUri(i)), 0, i + 1);
+            mMainLooper.idleFor(Duration.ofMillis(1L));
+        }
+        mMainLooper.idleFor(Duration.ofSeconds(1L));
+
+        await(() -> !sPreparedUris.isEmpty());
+        TimeUnit.MILLISECONDS.sleep(SETTLE_MILLIS);
+        mMainLooper.idle();
+        assertEquals(1, sPreparedUris.size());
+        assertEquals(getUri(BURST - 1), sPreparedUris.get(0));
+    }
+
+    @NonNull
+    private static Uri getUri(final int index) {
+        return Uri.parse("file:///sdcard/Music/track" + index + ".mp3");
+    }
+
+    private static void await(@NonNull final BooleanSupplier condition) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out", System.nanoTime() < deadline);
+            try {
+                Thread.sleep(1L);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    public static final class TestService extends AudioPlayerService {
+        @NonNull
+        @Override
+        PlaybackEngine.Factory createEngineFactory() {
+            return looping -> new FakeEngine();
+        }
+    }
+
+    /**
+     * Engine that records which source it prepares and prepares at once, delivering its
+     * callback on the playback thread like the real engines.
+     */
+    private static final class FakeEngine implements PlaybackEngine {
+        private final Handler mHandler = new Handler(Looper.myLooper());
+
+        private Listener mListener;
+
+        private Uri mUri;
+
+        private boolean mPlaying;
+
+        private boolean mLooping;
+
+        @Override
+        public void setListener(@Nullable Listener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void setDataSource(@NonNull SourceResolver.Source source) {
+            mUri = source.uri;
+        }
+
+        @Override
+        public void prepareAsync() {
+            sPreparedUris.add(mUri);
+            mHandler.post(() -> mListener.onPrepared(this));
+        }
+
+        @Override
+        public void start() {
+            mPlaying = true;
+        }
+
+        @Override
+        public void pause() {
+            mPlaying = false;
+        }
+
+        @Override
+        public boolean isPlaying() {
+            return mPlaying;
+        }
+
+        @Override
+        public void setLooping(boolean looping) {
+            mLooping = looping;
+        }
+
+        @Override
+        public boolean isLooping() {
+            return mLooping;
+        }
+
+        @Override
+        public void setLoopRange(long startMs, long endMs) {
+        }
+
+        @Override
+        public void seekTo(long positionMs, int mode) {
+            mHandler.post(() -> mListener.onSeekComplete(this));
+        }
+
+        @Override
+        public long getDuration() {
+            return 0L;
+        }
+
+        @Override
+        public long getCurrentPosition() {
+            return 0L;
+        }
+
+        @Override
+        public boolean anchor(@NonNull PlaybackClock clock) {
+            return false;
+        }
+
+        @Override
+        public void setNextEngine(@Nullable PlaybackEngine next) {
+        }
+
+        @NonNull
+        @Override
+        public String getOutputPath() {
+            return "fake";
+        }
+
+        @Override
+        public boolean supportsSeamlessLooping() {
+            return true;
+        }
+
+        @Override
+        public boolean holdsWakeLock() {
+            return false;
+        }
+
+        @Nullable
+        @Override
+        public String getNoOffloadReason() {
+            return null;
+        }
+
+        @Override
+        public void reset() {
+            mPlaying = false;
+            mUri = null;
+        }
+
+        @Override
+        public void release() {
+            mPlaying = false;
+        }
+    }
+}
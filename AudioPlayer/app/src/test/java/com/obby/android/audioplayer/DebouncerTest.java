@@ -0,0 +1,85 @@
+package com.obby.android.audioplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.time.Duration;
+
+/**
+ * Drives the source debounce the way a burst of start intents does, counting runs.
+ */
+@RunWith(RobolectricTestRunner.class)
+public final class DebouncerTest {
+    private static final long WINDOW_MILLIS = 150L;
+
+    private static final int BURST = 100;
+
+    private ShadowLooper mMainLooper;
+
+    private Debouncer mDebouncer;
+
+    private int mRunCount;
+
+    @Before
+    public void setUp() {
+        mMainLooper = shadowOf(Looper.getMainLooper());
+        mDebouncer = new Debouncer(
+                new Handler(Looper.getMainLooper()), WINDOW_MILLIS, () -> mRunCount++
+        );
+    }
+
+    @Test
+    public void request_single_runsAfterWindow() {
+        mDebouncer.request();
+        assertEquals(0, mRunCount);
+
+        mMainLooper.idleFor(Duration.ofMillis(WINDOW_MILLIS));
+        assertEquals(1, mRunCount);
+    }
+
+    @Test
+    public void request_burst_runsOnce() {
+        for (int i = 0; i < BURST; i++) {
+            mDebouncer.request();
+            mMainLooper.idleFor(Duration.ofMillis(WINDOW_MILLIS / 10L));
+        }
+        assertEquals(0, mRunCount);
+
+        mMainLooper.idleFor(Duration.ofMillis(WINDOW_MILLIS));
+        assertEquals(1, mRunCount);
+
+        mMainLooper.idleFor(Duration.ofSeconds(1L));
+        assertEquals(1, mRunCount);
+    }
+
+    @Test
+    public void request_afterQuietWindow_runsAgain() {
+        mDebouncer.request();
+        mMainLooper.idleFor(Duration.ofMillis(WINDOW_MILLIS));
+
+        mDebouncer.request();
+        mMainLooper.idleFor(Duration.ofMillis(WINDOW_MILLIS));
+
+        assertEquals(2, mRunCount);
+    }
+
+    @Test
+    public void cancel_dropsPendingRun() {
+        mDebouncer.request();
+        mDebouncer.request();
+
+        mDebouncer.cancel();
+        mMainLooper.idleFor(Duration.ofSeconds(1L));
+
+        assertEquals(0, mRunCount);
+    }
+}
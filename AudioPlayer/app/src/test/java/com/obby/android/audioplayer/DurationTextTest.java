@@ -0,0 +1,41 @@
+package com.obby.android.audioplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+public final class DurationTextTest {
+    @Test
+    public void set_matchesStringFormat() {
+        final DurationText text = new DurationText();
+        for (long seconds = 0L; seconds < 2L * 60L * 60L; seconds += 7L) {
+            text.set(seconds * 1000L + 999L);
+            assertEquals(
+                    String.format(Locale.US, "%d:%02d", seconds / 60L, seconds % 60L),
+                    text.toString()
+            );
+        }
+    }
+
+    @Test
+    public void set_negative_clampsToZero() {
+        final DurationText text = new DurationText();
+
+        text.set(-1L);
+
+        assertEquals("0:00", text.toString());
+    }
+
+    @Test
+    public void set_sameSecond_reportsUnchanged() {
+        final DurationText text = new DurationText();
+
+        assertTrue(text.set(61_000L));
+        assertFalse(text.set(61_999L));
+        assertTrue(text.set(62_000L));
+    }
+}
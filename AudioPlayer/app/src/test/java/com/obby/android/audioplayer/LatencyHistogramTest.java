@@ -0,0 +1,57 @@
+package com.obby.android.audioplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+public final class LatencyHistogramTest {
+    private static final int RECORDS = 100_000;
+
+    /**
+     * Allows for measurement noise, one allocation per record would be megabytes.
+     */
+    private static final long ALLOCATION_SLACK_BYTES = 1024L;
+
+    @Test
+    public void dump_reportsPercentilesOfRecentSamples() {
+        final LatencyHistogram histogram = new LatencyHistogram(100);
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+
+        final StringWriter out = new StringWriter();
+        try (final PrintWriter writer = new PrintWriter(out)) {
+            histogram.dump(writer, "seek");
+        }
+
+        assertEquals(
+                String.format(Locale.US, "  %-16s n=%-4d p50=%.1fms p95=%.1fms p99=%.1fms%n",
+                        "seek", 100, 50.0, 95.0, 99.0
+                ),
+                out.toString()
+        );
+    }
+
+    @Test
+    public void record_doesNotAllocate() {
+        final LatencyHistogram histogram = new LatencyHistogram(256);
+        final Runnable records = () -> {
+            for (int i = 0; i < RECORDS; i++) {
+                histogram.record(i);
+            }
+        };
+        final AllocationCounter counter = new AllocationCounter();
+
+        // Warm up so that class loading and compilation are not counted
+        records.run();
+        final long allocated = counter.measure(records);
+
+        assertTrue("Allocated " + allocated + " bytes", allocated < ALLOCATION_SLACK_BYTES);
+    }
+}
@@ -0,0 +1,205 @@
+package com.obby.android.audioplayer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.drawable.Icon;
+import android.net.Uri;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Parcel;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.GraphicsMode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds covers through the real decode, encode and share path and checks that the player
+ * notification stays within its parcel budget whatever the cover. Native graphics make the
+ * encoder produce real WebP output.
+ */
+@RunWith(RobolectricTestRunner.class)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+public final class NotificationPublisherTest {
+    private static final int PARCEL_BUDGET_BYTES = 16 * 1024;
+
+    private static final int ARTWORK_SIZE = 256;
+
+    private static final long TIMEOUT_MILLIS = 10_000L;
+
+    private Service mService;
+
+    private ArtworkDecoder mArtworkDecoder;
+
+    private ArtworkStore mArtworkStore;
+
+    @Before
+    public void setUp() {
+        mService = Robolectric.buildService(TestService.class).create().get();
+        Robolectric.setupContentProvider(
+                ArtworkProvider.class, mService.getPackageName() + ".artwork"
+        );
+        mArtworkDecoder = new ArtworkDecoder(ARTWORK_SIZE, new BitmapPool(0L));
+        mArtworkStore = new ArtworkStore(mService);
+    }
+
+    @Test
+    public void encode_oversizeCover_fitsEncodedBudget() {
+        final byte[] data = encode(createCover(2048));
+
+        assertTrue("Encoded size " + data.length, data.length > 0);
+        assertTrue(
+                "Encoded size " + data.length, data.length <= ArtworkDecoder.MAX_ENCODED_BYTES
+        );
+    }
+
+    @Test
+    public void share_encodedCover_isReadableThroughProvider() throws IOException {
+        final byte[] data = encode(createCover(2048));
+        final Uri uri = mArtworkStore.share(data);
+
+        assertNotNull(uri);
+        try (InputStream in = mService.getContentResolver().openInputStream(uri)) {
+            assertNotNull(in);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            assertArrayEquals(data, out.toByteArray());
+        }
+    }
+
+    @Test
+    public void publish_sharedCover_usesUriIconWithinBudget() {
+        for (final int coverSize : new int[]{64, 2048}) {
+            final Bitmap cover = createCover(coverSize);
+            final byte[] data = encode(cover);
+            final Notification notification = publish(
+                    decode(cover), data, mArtworkStore.share(data)
+            );
+
+            assertEquals(Icon.TYPE_URI, notification.getLargeIcon().getType());
+            final int size = getParcelSize(notification);
+            assertTrue("Parcel size " + size, size < PARCEL_BUDGET_BYTES);
+        }
+    }
+
+    @Test
+    public void publish_unsharedCover_carriesEncodedBytesOnly() {
+        final Bitmap cover = createCover(2048);
+        final Notification notification = publish(decode(cover), encode(cover), null);
+
+        assertEquals(Icon.TYPE_DATA, notification.getLargeIcon().getType());
+        final int size = getParcelSize(notification);
+        assertTrue(
+                "Parcel size " + size,
+                size < ArtworkDecoder.MAX_ENCODED_BYTES + PARCEL_BUDGET_BYTES
+        );
+    }
+
+    /**
+     * Noise, which compresses about as badly as a cover can.
+     */
+    @NonNull
+    private static Bitmap createCover(final int size) {
+        final Random random = new Random(size);
+        final int[] pixels = new int[size * size];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+        return Bitmap.createBitmap(pixels, size, size, Bitmap.Config.ARGB_8888);
+    }
+
+    @NonNull
+    private Bitmap decode(@NonNull final Bitmap cover) {
+        final ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        assertTrue(cover.compress(Bitmap.CompressFormat.JPEG, 95, raw));
+        final Bitmap artwork = mArtworkDecoder.decode(raw.toByteArray());
+        assertNotNull(artwork);
+        return artwork;
+    }
+
+    @NonNull
+    private byte[] encode(@NonNull final Bitmap cover) {
+        final byte[] data = mArtworkDecoder.encode(decode(cover));
+        assertNotNull(data);
+        return data;
+    }
+
+    @NonNull
+    private Notification publish(@NonNull final Bitmap artwork, @NonNull final byte[] artworkData,
+                                 @Nullable final Uri artworkUri) {
+        final PendingIntent contentIntent = PendingIntent.getActivity(
+                mService, 0, new Intent(), PendingIntent.FLAG_IMMUTABLE
+        );
+        final NotificationPublisher publisher = new NotificationPublisher(
+                mService, "playback", "Playback", 1, "state", "loop", "next", "exit",
+                contentIntent
+        );
+        publisher.setMetadata("Title", "Subtitle", artwork, artworkData, artworkUri);
+        publisher.setPlayback(true, false, true);
+        publisher.publishNow();
+        return awaitForegroundNotification();
+    }
+
+    /**
+     * Waits for the first post, which follows the channel created on a background thread.
+     */
+    @NonNull
+    private Notification awaitForegroundNotification() {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (true) {
+            shadowOf(Looper.getMainLooper()).idle();
+            final Notification notification = shadowOf(mService).getLastForegroundNotification();
+            if (notification != null) {
+                return notification;
+            }
+            assertTrue("Timed out", System.nanoTime() < deadline);
+            try {
+                Thread.sleep(1L);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private static int getParcelSize(@NonNull final Notification notification) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            notification.writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    public static final class TestService extends Service {
+        @Nullable
+        @Override
+        public IBinder onBind(final Intent intent) {
+            return null;
+        }
+    }
+}
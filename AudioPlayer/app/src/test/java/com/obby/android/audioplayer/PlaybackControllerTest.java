@@ -0,0 +1,305 @@
+package com.obby.android.audioplayer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Drives the playback thread with a fake engine whose seeks take a while, the way a slow
+ * decoder does while the timeline slider is dragged.
+ */
+@RunWith(RobolectricTestRunner.class)
+public final class PlaybackControllerTest {
+    private static final int SLIDER_EVENTS = 1000;
+
+    private static final long SLIDER_EVENT_INTERVAL_MICROS = 1000L;
+
+    private static final long SEEK_LATENCY_MILLIS = 20L;
+
+    private static final long DURATION_MILLIS = 600_000L;
+
+    private static final long TIMEOUT_MILLIS = 10_000L;
+
+    private final ScheduledExecutorService mSeekExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+
+    private volatile FakeEngine mEngine;
+
+    private PlaybackController mPlaybackController;
+
+    @Before
+    public void setUp() {
+        final Context context = RuntimeEnvironment.getApplication();
+        mPlaybackController = new PlaybackController(
+                context, new PlaybackClock(), new SourceResolver(context),
+                looping -> mEngine = new FakeEngine(looping),
+                new PlaybackController.Listener() {
+                    @Override
+                    public void onPlaybackStateChanged(
+                            @NonNull PlaybackController.State state) {
+                    }
+
+                    @Override
+                    public void onPlaybackError() {
+                    }
+
+                    @Override
+                    public void onPlaybackSuspended() {
+                    }
+                }
+        );
+        mPlaybackController.setSource(Uri.parse("file:///sdcard/Music/test.mp3"));
+        await(() -> mPlaybackController.getState().prepared);
+    }
+
+    @After
+    public void tearDown() {
+        mPlaybackController.release();
+        mSeekExecutor.shutdownNow();
+    }
+
+    @Test
+    public void scrubTo_sliderBurst_keepsSeeksBounded() throws InterruptedException {
+        final long startTime = System.nanoTime();
+        for (int i = 1; i <= SLIDER_EVENTS; i++) {
+            mPlaybackController.scrubTo(i * 100L);
+            TimeUnit.MICROSECONDS.sleep(SLIDER_EVENT_INTERVAL_MICROS);
+        }
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+        await(() -> mEngine.mSeeksInFlight.get() == 0
+                && mEngine.mLastSeekPosition.get() == SLIDER_EVENTS * 100L);
+
+        // One seek per seek latency at most, plus the first and the final one
+        final int seeks = mEngine.mSeekCount.get();
+        assertTrue("Seeks " + seeks, seeks <= elapsedMillis / SEEK_LATENCY_MILLIS + 2);
+        assertEquals(1, mEngine.mMaxSeeksInFlight.get());
+    }
+
+    @Test
+    public void seekTo_afterScrub_endsAtExactPosition() {
+        for (int i = 1; i <= SLIDER_EVENTS; i++) {
+            mPlaybackController.scrubTo(i * 100L);
+        }
+        mPlaybackController.seekTo(12_345L);
+
+        await(() -> mEngine.mSeeksInFlight.get() == 0
+                && mEngine.mLastSeekPosition.get() == 12_345L);
+        assertEquals(1, mEngine.mMaxSeeksInFlight.get());
+    }
+
+    @Test
+    public void toggleLooping_withoutSeamlessLooping_movesToLoopingEngine() {
+        final FakeEngine engine = mEngine;
+        assertFalse(engine.mSeamlessLooping);
+        mPlaybackController.seekTo(12_345L);
+        await(() -> engine.mSeeksInFlight.get() == 0
+                && engine.mLastSeekPosition.get() == 12_345L);
+
+        mPlaybackController.setLoopRange(1_000L, 20_000L);
+        mPlaybackController.toggleLooping();
+
+        await(() -> mPlaybackController.getState().looping
+                && mPlaybackController.getState().playing);
+        final FakeEngine loopingEngine = mEngine;
+        assertTrue(loopingEngine.mSeamlessLooping);
+        assertArrayEquals(new long[]{1_000L, 20_000L}, loopingEngine.mLoopRange);
+        await(() -> loopingEngine.mSeeksInFlight.get() == 0
+                && loopingEngine.mLastSeekPosition.get() == 12_345L);
+    }
+
+    @Test
+    public void toggleLooping_whileSuspended_appliesOnResume() {
+        mPlaybackController.pause();
+        mPlaybackController.suspend();
+        await(() -> mPlaybackController.getState().suspended);
+
+        mPlaybackController.toggleLooping();
+        await(() -> {
+            final PlaybackController.State state = mPlaybackController.getState();
+            return state.suspended && state.looping;
+        });
+
+        mPlaybackController.play();
+        await(() -> {
+            final PlaybackController.State state = mPlaybackController.getState();
+            return state.prepared && state.looping;
+        });
+        assertTrue(mEngine.mSeamlessLooping);
+    }
+
+    private static void await(@NonNull final BooleanSupplier condition) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out", System.nanoTime() < deadline);
+            try {
+                Thread.sleep(1L);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    /**
+     * Engine that prepares at once and completes every seek after a fixed latency,
+     * delivering its callbacks on the playback thread like the real engines. Only engines
+     * created for looping loop seamlessly.
+     */
+    private final class FakeEngine implements PlaybackEngine {
+        final boolean mSeamlessLooping;
+
+        volatile long[] mLoopRange;
+
+        final AtomicInteger mSeekCount = new AtomicInteger();
+
+        final AtomicInteger mSeeksInFlight = new AtomicInteger();
+
+        final AtomicInteger mMaxSeeksInFlight = new AtomicInteger();
+
+        final AtomicLong mLastSeekPosition = new AtomicLong(-1L);
+
+        private final Handler mHandler = new Handler(Looper.myLooper());
+
+        private Listener mListener;
+
+        private boolean mPlaying;
+
+        private boolean mLooping;
+
+        private long mPosition;
+
+        FakeEngine(final boolean seamlessLooping) {
+            mSeamlessLooping = seamlessLooping;
+        }
+
+        @Override
+        public void setListener(@Nullable Listener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void setDataSource(@NonNull SourceResolver.Source source) {
+        }
+
+        @Override
+        public void prepareAsync() {
+            mHandler.post(() -> mListener.onPrepared(this));
+        }
+
+        @Override
+        public void start() {
+            mPlaying = true;
+        }
+
+        @Override
+        public void pause() {
+            mPlaying = false;
+        }
+
+        @Override
+        public boolean isPlaying() {
+            return mPlaying;
+        }
+
+        @Override
+        public void setLooping(boolean looping) {
+            mLooping = looping;
+        }
+
+        @Override
+        public boolean isLooping() {
+            return mLooping;
+        }
+
+        @Override
+        public void setLoopRange(long startMs, long endMs) {
+            mLoopRange = new long[]{startMs, endMs};
+        }
+
+        @Override
+        public boolean supportsSeamlessLooping() {
+            return mSeamlessLooping;
+        }
+
+        @Override
+        public void seekTo(long positionMs, int mode) {
+            mSeekCount.incrementAndGet();
+            mMaxSeeksInFlight.accumulateAndGet(mSeeksInFlight.incrementAndGet(), Math::max);
+            mSeekExecutor.schedule(() -> mHandler.post(() -> {
+                mPosition = positionMs;
+                mLastSeekPosition.set(positionMs);
+                mSeeksInFlight.decrementAndGet();
+                mListener.onSeekComplete(this);
+            }), SEEK_LATENCY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public long getDuration() {
+            return DURATION_MILLIS;
+        }
+
+        @Override
+        public long getCurrentPosition() {
+            return mPosition;
+        }
+
+        @Override
+        public boolean anchor(@NonNull PlaybackClock clock) {
+            return false;
+        }
+
+        @Override
+        public void setNextEngine(@Nullable PlaybackEngine next) {
+        }
+
+        @NonNull
+        @Override
+        public String getOutputPath() {
+            return "fake";
+        }
+
+        @Override
+        public boolean holdsWakeLock() {
+            return false;
+        }
+
+        @Nullable
+        @Override
+        public String getNoOffloadReason() {
+            return null;
+        }
+
+        @Override
+        public void reset() {
+            mPlaying = false;
+            mPosition = 0L;
+        }
+
+        @Override
+        public void release() {
+            mPlaying = false;
+        }
+    }
+}
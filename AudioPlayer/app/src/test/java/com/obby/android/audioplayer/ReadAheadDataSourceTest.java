@@ -0,0 +1,172 @@
+package com.obby.android.audioplayer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaDataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads through a {@link ReadAheadDataSource} from a slow upstream, the way a player reads a
+ * remote provider.
+ */
+@RunWith(RobolectricTestRunner.class)
+public final class ReadAheadDataSourceTest {
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final int READ_AHEAD_BLOCKS = 16;
+
+    private static final int SIZE = 3 * 1024 * 1024 + 123;
+
+    private static final int READ_SIZE = 4096;
+
+    private static final long UPSTREAM_DELAY_MILLIS = 2L;
+
+    private static final long TIMEOUT_MILLIS = 10_000L;
+
+    @Rule
+    public final TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private final byte[] mData = new byte[SIZE];
+
+    private ThrottledDataSource mUpstream;
+
+    private ReadAheadDataSource mDataSource;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(42L).nextBytes(mData);
+        mUpstream = new ThrottledDataSource(mData);
+        mDataSource = new ReadAheadDataSource(mUpstream, mTemporaryFolder.getRoot());
+    }
+
+    @After
+    public void tearDown() {
+        mDataSource.close();
+    }
+
+    @Test
+    public void readAt_sequential_returnsUpstreamBytes() throws IOException {
+        final byte[] read = readFully(0L, SIZE);
+
+        assertArrayEquals(mData, read);
+        assertEquals(-1, mDataSource.readAt(SIZE, new byte[1], 0, 1));
+    }
+
+    @Test
+    public void readAt_withinReadAheadWindow_doesNotWaitForUpstream() throws Exception {
+        readFully(0L, 1);
+        awaitUpstreamReads(READ_AHEAD_BLOCKS);
+
+        final byte[] read = readFully(0L, READ_AHEAD_BLOCKS * BLOCK_SIZE);
+
+        for (int block = 0; block < READ_AHEAD_BLOCKS; block++) {
+            assertEquals(1, mUpstream.getReadCount((long) block * BLOCK_SIZE));
+        }
+        for (int i = 0; i < read.length; i++) {
+            assertEquals(mData[i], read[i]);
+        }
+    }
+
+    @Test
+    public void readAt_seekBack_isServedFromSpill() throws IOException {
+        readFully(0L, SIZE);
+        final int firstBlockReads = mUpstream.getReadCount(0L);
+
+        final byte[] read = readFully(0L, BLOCK_SIZE);
+
+        assertEquals(firstBlockReads, mUpstream.getReadCount(0L));
+        for (int i = 0; i < read.length; i++) {
+            assertEquals(mData[i], read[i]);
+        }
+    }
+
+    private byte[] readFully(final long position, final int length) throws IOException {
+        final byte[] buffer = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            final int read = mDataSource.readAt(
+                    position + offset, buffer, offset, Math.min(READ_SIZE, length - offset)
+            );
+            assertTrue("Unexpected end at " + (position + offset), read > 0);
+            offset += read;
+        }
+        return buffer;
+    }
+
+    private void awaitUpstreamReads(final int reads) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (mUpstream.getReadCount() < reads) {
+            assertTrue("Read-ahead stalled", System.nanoTime() < deadline);
+            Thread.sleep(UPSTREAM_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Upstream that takes a while for every read, counting reads per position.
+     */
+    private static final class ThrottledDataSource extends MediaDataSource {
+        private final byte[] mData;
+
+        private final AtomicInteger mReadCount = new AtomicInteger();
+
+        private final AtomicInteger[] mBlockReadCounts;
+
+        ThrottledDataSource(final byte[] data) {
+            mData = data;
+            mBlockReadCounts = new AtomicInteger[(data.length + BLOCK_SIZE - 1) / BLOCK_SIZE];
+            for (int i = 0; i < mBlockReadCounts.length; i++) {
+                mBlockReadCounts[i] = new AtomicInteger();
+            }
+        }
+
+        @Override
+        public int readAt(final long position, final byte[] buffer, final int offset,
+                          final int size) throws IOException {
+            try {
+                Thread.sleep(UPSTREAM_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            if (position >= mData.length) {
+                return -1;
+            }
+            mReadCount.incrementAndGet();
+            mBlockReadCounts[(int) (position / BLOCK_SIZE)].incrementAndGet();
+            final int length = (int) Math.min(size, mData.length - position);
+            System.arraycopy(mData, (int) position, buffer, offset, length);
+            return length;
+        }
+
+        @Override
+        public long getSize() {
+            return mData.length;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        int getReadCount() {
+            return mReadCount.get();
+        }
+
+        int getReadCount(final long position) {
+            return mBlockReadCounts[(int) (position / BLOCK_SIZE)].get();
+        }
+    }
+}
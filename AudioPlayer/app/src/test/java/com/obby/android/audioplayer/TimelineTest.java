@@ -0,0 +1,79 @@
+package com.obby.android.audioplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public final class TimelineTest {
+    private static final int TICKS = 100_000;
+
+    private static final long FRAME_MILLIS = 16L;
+
+    private static final long DURATION_MILLIS = 3_600_000L;
+
+    /**
+     * Allows for measurement noise, one allocation per tick would be megabytes.
+     */
+    private static final long ALLOCATION_SLACK_BYTES = 1024L;
+
+    @Test
+    public void take_afterSet_returnsPositionAndDuration() {
+        final Timeline timeline = new Timeline();
+
+        assertTrue(timeline.set(12_345L, DURATION_MILLIS));
+        assertTrue(timeline.take());
+
+        assertEquals(12_345L, timeline.getPosition());
+        assertEquals(DURATION_MILLIS, timeline.getDuration());
+    }
+
+    @Test
+    public void set_outOfRange_clamps() {
+        final Timeline timeline = new Timeline();
+
+        timeline.set(-1L, Long.MAX_VALUE);
+        timeline.take();
+        assertEquals(0L, timeline.getPosition());
+        assertEquals(Integer.MAX_VALUE, timeline.getDuration());
+
+        timeline.set(2_000L, 1_000L);
+        timeline.take();
+        assertEquals(1_000L, timeline.getPosition());
+    }
+
+    @Test
+    public void set_unchanged_isNotTakenAgain() {
+        final Timeline timeline = new Timeline();
+        timeline.set(1_000L, DURATION_MILLIS);
+        timeline.take();
+
+        assertFalse(timeline.set(1_000L, DURATION_MILLIS));
+        assertFalse(timeline.take());
+    }
+
+    @Test
+    public void tick_playing_doesNotAllocate() {
+        final Timeline timeline = new Timeline();
+        final DurationText positionText = new DurationText();
+        final DurationText durationText = new DurationText();
+        final Runnable ticks = () -> {
+            for (int i = 0; i < TICKS; i++) {
+                // What the ticker and the next frame of the floating window do
+                timeline.set(i * FRAME_MILLIS, DURATION_MILLIS);
+                if (timeline.take()) {
+                    positionText.set(timeline.getPosition());
+                    durationText.set(timeline.getDuration());
+                }
+            }
+        };
+        final AllocationCounter counter = new AllocationCounter();
+
+        // Warm up so that class loading and compilation are not counted
+        ticks.run();
+        final long allocated = counter.measure(ticks);
+
+        assertTrue("Allocated " + allocated + " bytes", allocated < ALLOCATION_SLACK_BYTES);
+    }
+}